@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the number of {@link TextureVideoView}s owning a media player (and thus a decoder) at the
+ * same time.
+ * <p>
+ * Every view opening a video asks for a decoder slot. If all slots are taken, the view with the
+ * lowest {@link TextureVideoView#setDecoderPriority(int) priority} is suspended: it remembers its
+ * position, releases its player and waits for a free slot. Views waiting for a slot are granted one
+ * in order of their priority and reopen their video at the saved position.
+ * <p>
+ * By default the number of decoders is not limited. All methods must be called from the main
+ * thread.
+ */
+public final class DecoderBudget {
+
+    private static final DecoderBudget INSTANCE = new DecoderBudget();
+
+    private final List<TextureVideoView> grantedViews = new ArrayList<>();
+    private final List<TextureVideoView> waitingViews = new ArrayList<>();
+
+    private int maxDecoders = Integer.MAX_VALUE;
+
+    // the view inside acquire(), which learns about its slot from the return value
+    private TextureVideoView acquiringView;
+
+    private DecoderBudget() {
+    }
+
+    /**
+     * @return the process-wide decoder budget.
+     */
+    public static DecoderBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the maximum number of views owning a media player at the same time. If the new limit is
+     * lower than the number of views currently owning a player, the views with the lowest priority
+     * are suspended immediately.
+     *
+     * @param maxDecoders the maximum number of concurrent decoders, at least {@code 1}.
+     */
+    public void setMaxDecoders(int maxDecoders) {
+        if (maxDecoders < 1) {
+            throw new IllegalArgumentException("maxDecoders must be positive: " + maxDecoders);
+        }
+        this.maxDecoders = maxDecoders;
+        rebalance();
+    }
+
+    public int getMaxDecoders() {
+        return maxDecoders;
+    }
+
+    /**
+     * @return the number of views currently owning a decoder slot.
+     */
+    public int getUsedDecoders() {
+        return grantedViews.size();
+    }
+
+    /**
+     * @return the number of suspended views waiting for a decoder slot.
+     */
+    public int getWaitingCount() {
+        return waitingViews.size();
+    }
+
+    /**
+     * Asks for a decoder slot. If none is available, the view is queued and
+     * {@link TextureVideoView#onDecoderGranted()} is called as soon as it gets one.
+     *
+     * @return {@code true} if the view owns a slot.
+     */
+    boolean acquire(TextureVideoView view) {
+        if (grantedViews.contains(view)) return true;
+
+        if (!waitingViews.contains(view)) {
+            waitingViews.add(view);
+        }
+        final TextureVideoView previous = acquiringView;
+        acquiringView = view;
+        try {
+            rebalance();
+        } finally {
+            acquiringView = previous;
+        }
+        return grantedViews.contains(view);
+    }
+
+    /**
+     * Gives up the slot of the view or removes it from the queue of waiting views.
+     */
+    void release(TextureVideoView view) {
+        final boolean removed = grantedViews.remove(view);
+        waitingViews.remove(view);
+        if (removed) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Moves the slot of one view to another one without suspending any of them.
+     */
+    void transfer(TextureVideoView source, TextureVideoView target) {
+        waitingViews.remove(target);
+        final int index = grantedViews.indexOf(source);
+        if (index >= 0) {
+            grantedViews.set(index, target);
+        }
+    }
+
+    void onPriorityChanged(TextureVideoView view) {
+        if (grantedViews.contains(view) || waitingViews.contains(view)) {
+            rebalance();
+        }
+    }
+
+    private void rebalance() {
+        while (grantedViews.size() > maxDecoders) {
+            revoke(findLowestPriority(grantedViews));
+        }
+        while (grantedViews.size() < maxDecoders && !waitingViews.isEmpty()) {
+            grant(findHighestPriority(waitingViews));
+        }
+        while (!waitingViews.isEmpty() && !grantedViews.isEmpty()) {
+            final TextureVideoView highest = findHighestPriority(waitingViews);
+            final TextureVideoView lowest = findLowestPriority(grantedViews);
+            if (highest.getDecoderPriority() <= lowest.getDecoderPriority()) {
+                break;
+            }
+            revoke(lowest);
+            grant(highest);
+        }
+    }
+
+    private void grant(TextureVideoView view) {
+        waitingViews.remove(view);
+        grantedViews.add(view);
+        if (view != acquiringView) {
+            view.onDecoderGranted();
+        }
+    }
+
+    private void revoke(TextureVideoView view) {
+        grantedViews.remove(view);
+        waitingViews.add(view);
+        view.onDecoderRevoked();
+    }
+
+    private static TextureVideoView findLowestPriority(List<TextureVideoView> views) {
+        TextureVideoView lowest = null;
+        for (TextureVideoView view : views) {
+            if (lowest == null || view.getDecoderPriority() < lowest.getDecoderPriority()) {
+                lowest = view;
+            }
+        }
+        return lowest;
+    }
+
+    private static TextureVideoView findHighestPriority(List<TextureVideoView> views) {
+        TextureVideoView highest = null;
+        for (TextureVideoView view : views) {
+            if (highest == null || view.getDecoderPriority() > highest.getDecoderPriority()) {
+                highest = view;
+            }
+        }
+        return highest;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget;
+
+import android.media.MediaPlayer;
+import android.util.Log;
+
+import com.sprylab.android.widget.metrics.MediaPlayerProfiler;
+import com.sprylab.android.widget.metrics.PlaybackMetrics;
+
+import java.util.ArrayDeque;
+
+/**
+ * A process-wide, bounded pool of idle {@link MediaPlayer} instances.
+ * <p>
+ * Creating and releasing a native player is expensive, so {@link TextureVideoView} checks players
+ * out of this pool with {@link #acquire()} and hands them back with {@link #recycle(MediaPlayer)}
+ * instead of creating a new one for every video. Recycled players are {@link MediaPlayer#reset() reset}
+ * and kept in the idle state; players exceeding the {@link #setCapacity(int) capacity} are released.
+ * <p>
+ * Note that a {@link MediaPlayer} delivers its events on the looper of the thread that created it,
+ * so {@link #prewarm(int)} should be called from the main thread (e.g. in
+ * {@link android.app.Application#onCreate()}).
+ */
+public final class MediaPlayerPool {
+
+    private static final String TAG = MediaPlayerPool.class.getSimpleName();
+
+    private static final int DEFAULT_CAPACITY = 2;
+
+    private static final MediaPlayerPool INSTANCE = new MediaPlayerPool();
+
+    private final ArrayDeque<MediaPlayer> idlePlayers = new ArrayDeque<>();
+
+    private int capacity = DEFAULT_CAPACITY;
+
+    private long hitCount;
+    private long missCount;
+    private long creationCount;
+    private long totalCreationNanos;
+    private long maxCreationNanos;
+
+    private MediaPlayerPool() {
+    }
+
+    /**
+     * @return the process-wide pool instance.
+     */
+    public static MediaPlayerPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the maximum number of idle players kept by this pool. Surplus idle players are released
+     * immediately. A capacity of {@code 0} disables pooling.
+     *
+     * @param capacity the maximum number of idle players.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        synchronized (this) {
+            this.capacity = capacity;
+            while (idlePlayers.size() > capacity) {
+                releasePlayer(idlePlayers.pollLast());
+            }
+        }
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Creates idle players until the pool holds {@code count} players (bounded by the capacity).
+     *
+     * @param count the desired number of idle players.
+     */
+    public void prewarm(int count) {
+        while (true) {
+            synchronized (this) {
+                if (idlePlayers.size() >= Math.min(count, capacity)) {
+                    return;
+                }
+            }
+            final MediaPlayer mediaPlayer = createPlayer();
+            synchronized (this) {
+                if (idlePlayers.size() < capacity) {
+                    idlePlayers.addLast(mediaPlayer);
+                    continue;
+                }
+            }
+            releasePlayer(mediaPlayer);
+            return;
+        }
+    }
+
+    /**
+     * Checks out an idle player, creating a new one if the pool is empty.
+     *
+     * @return a player in the idle state.
+     */
+    public MediaPlayer acquire() {
+        final PlaybackMetrics metrics = TextureVideoView.getPlaybackMetrics();
+        metrics.addToGauge(PlaybackMetrics.GAUGE_PLAYERS_IN_USE, 1);
+        synchronized (this) {
+            final MediaPlayer mediaPlayer = idlePlayers.pollFirst();
+            if (mediaPlayer != null) {
+                hitCount++;
+                metrics.incrementCounter(PlaybackMetrics.COUNTER_POOL_HITS, 1);
+                return mediaPlayer;
+            }
+            missCount++;
+        }
+        metrics.incrementCounter(PlaybackMetrics.COUNTER_POOL_MISSES, 1);
+        return createPlayer();
+    }
+
+    /**
+     * Returns a player to the pool. The player is reset and its surface and listeners are removed.
+     * If the pool is full, the player is released instead.
+     *
+     * @param mediaPlayer the player to return; must not be used by the caller afterwards.
+     */
+    public void recycle(MediaPlayer mediaPlayer) {
+        TextureVideoView.getPlaybackMetrics().addToGauge(PlaybackMetrics.GAUGE_PLAYERS_IN_USE, -1);
+        synchronized (this) {
+            if (idlePlayers.size() >= capacity) {
+                releasePlayer(mediaPlayer);
+                return;
+            }
+        }
+        try {
+            final long start = MediaPlayerProfiler.begin();
+            mediaPlayer.reset();
+            MediaPlayerProfiler.end(MediaPlayerProfiler.RESET, start);
+        } catch (IllegalStateException ex) {
+            Log.w(TAG, "Unable to reset player, releasing it instead.", ex);
+            releasePlayer(mediaPlayer);
+            return;
+        }
+        detach(mediaPlayer);
+        synchronized (this) {
+            if (idlePlayers.size() < capacity) {
+                idlePlayers.addLast(mediaPlayer);
+                return;
+            }
+        }
+        releasePlayer(mediaPlayer);
+    }
+
+    /**
+     * Releases all idle players, e.g. when the application is trimming its memory.
+     */
+    public void clear() {
+        synchronized (this) {
+            while (!idlePlayers.isEmpty()) {
+                releasePlayer(idlePlayers.pollFirst());
+            }
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return idlePlayers.size();
+    }
+
+    /**
+     * @return the number of {@link #acquire()} calls served by an idle player.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of {@link #acquire()} calls that had to create a new player.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the number of players created by this pool, including pre-warmed ones.
+     */
+    public synchronized long getCreationCount() {
+        return creationCount;
+    }
+
+    /**
+     * @return the average time spent in the {@link MediaPlayer} constructor in nanoseconds.
+     */
+    public synchronized long getAverageCreationNanos() {
+        return creationCount == 0 ? 0 : totalCreationNanos / creationCount;
+    }
+
+    /**
+     * @return the longest time spent in the {@link MediaPlayer} constructor in nanoseconds.
+     */
+    public synchronized long getMaxCreationNanos() {
+        return maxCreationNanos;
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public synchronized void resetStatistics() {
+        hitCount = 0;
+        missCount = 0;
+        creationCount = 0;
+        totalCreationNanos = 0;
+        maxCreationNanos = 0;
+    }
+
+    private MediaPlayer createPlayer() {
+        final long start = System.nanoTime();
+        final MediaPlayer mediaPlayer = new MediaPlayer();
+        final long duration = System.nanoTime() - start;
+        MediaPlayerProfiler.record(MediaPlayerProfiler.CREATE, duration);
+        TextureVideoView.getPlaybackMetrics().incrementCounter(PlaybackMetrics.COUNTER_PLAYERS_CREATED, 1);
+        synchronized (this) {
+            creationCount++;
+            totalCreationNanos += duration;
+            if (duration > maxCreationNanos) {
+                maxCreationNanos = duration;
+            }
+        }
+        return mediaPlayer;
+    }
+
+    private static void releasePlayer(MediaPlayer mediaPlayer) {
+        final long start = MediaPlayerProfiler.begin();
+        mediaPlayer.release();
+        MediaPlayerProfiler.end(MediaPlayerProfiler.RELEASE, start);
+    }
+
+    private static void detach(MediaPlayer mediaPlayer) {
+        mediaPlayer.setSurface(null);
+        mediaPlayer.setOnPreparedListener(null);
+        mediaPlayer.setOnVideoSizeChangedListener(null);
+        mediaPlayer.setOnCompletionListener(null);
+        mediaPlayer.setOnErrorListener(null);
+        mediaPlayer.setOnInfoListener(null);
+        mediaPlayer.setOnBufferingUpdateListener(null);
+        mediaPlayer.setOnSeekCompleteListener(null);
+    }
+}
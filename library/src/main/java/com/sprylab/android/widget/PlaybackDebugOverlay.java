@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+import com.sprylab.android.widget.metrics.FramePacingMonitor;
+
+/**
+ * A debug overlay showing live playback statistics of a {@link TextureVideoView}: frame rate,
+ * dropped frames, buffer percentage, stalls, current and target state, decoder budget usage and
+ * time to first frame.
+ * <p>
+ * A {@link android.view.TextureView} can't draw on top of its own content, so the overlay is a
+ * separate view that has to be placed above the video, e.g. as a sibling in a
+ * {@link android.widget.FrameLayout}:
+ * <pre>
+ * overlay.setVideoView(videoView);
+ * </pre>
+ * While attached and visible, the statistics are refreshed from a single
+ * {@link Choreographer.FrameCallback} every {@value #REFRESH_INTERVAL_MILLIS} ms (a delayed
+ * {@link Runnable} below API level 16, which lacks the {@link Choreographer}). Refreshing and
+ * drawing don't allocate.
+ */
+public class PlaybackDebugOverlay extends View {
+
+    private static final long REFRESH_INTERVAL_MILLIS = 250;
+
+    private static final int LINE_COUNT = 5;
+    private static final int LINE_CAPACITY = 64;
+
+    private static final float TEXT_SIZE_DP = 12;
+    private static final float PADDING_DP = 4;
+
+    // indexed by state + 1, see TextureVideoView.STATE_*
+    private static final String[] STATE_NAMES = {
+            "ERROR", "IDLE", "PREPARING", "PREPARED", "PLAYING", "PAUSED", "COMPLETED"
+    };
+
+    private final char[][] lines = new char[LINE_COUNT][LINE_CAPACITY];
+    private final int[] lineLengths = new int[LINE_COUNT];
+
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint backgroundPaint = new Paint();
+    private final float padding;
+    private final float textWidth;
+
+    private TextureVideoView videoView;
+    private boolean attached;
+    private boolean refreshScheduled;
+
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refreshScheduled = false;
+            if (videoView == null) return;
+
+            refresh();
+            invalidate();
+            scheduleRefresh();
+        }
+    };
+
+    // only created on API level 16 and above, the interface doesn't exist below
+    private Choreographer.FrameCallback refreshCallback;
+
+    public PlaybackDebugOverlay(Context context) {
+        this(context, null);
+    }
+
+    public PlaybackDebugOverlay(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public PlaybackDebugOverlay(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        final float density = getResources().getDisplayMetrics().density;
+        padding = PADDING_DP * density;
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTypeface(Typeface.MONOSPACE);
+        textPaint.setTextSize(TEXT_SIZE_DP * density);
+        backgroundPaint.setColor(Color.argb(160, 0, 0, 0));
+        textWidth = textPaint.measureText("state PREPARING -> COMPLETED  ");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            refreshCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    refreshRunnable.run();
+                }
+            };
+        }
+    }
+
+    /**
+     * Sets the view whose statistics are shown.
+     *
+     * @param videoView the video view, {@code null} to show nothing.
+     */
+    public void setVideoView(TextureVideoView videoView) {
+        this.videoView = videoView;
+        if (videoView == null) {
+            cancelRefresh();
+            invalidate();
+        } else {
+            refresh();
+            invalidate();
+            scheduleRefresh();
+        }
+    }
+
+    public TextureVideoView getVideoView() {
+        return videoView;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        attached = true;
+        scheduleRefresh();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        attached = false;
+        cancelRefresh();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        if (changedView == this && visibility != VISIBLE) {
+            cancelRefresh();
+        } else {
+            scheduleRefresh();
+        }
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (visibility == VISIBLE) {
+            scheduleRefresh();
+        } else {
+            cancelRefresh();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (videoView == null) return;
+
+        final float lineHeight = textPaint.getFontSpacing();
+        canvas.drawRect(0, 0, textWidth + 2 * padding, LINE_COUNT * lineHeight + 2 * padding, backgroundPaint);
+        float y = padding - textPaint.ascent();
+        for (int i = 0; i < LINE_COUNT; i++) {
+            canvas.drawText(lines[i], 0, lineLengths[i], padding, y, textPaint);
+            y += lineHeight;
+        }
+    }
+
+    private void scheduleRefresh() {
+        if (refreshScheduled || videoView == null || !attached || getVisibility() != VISIBLE) return;
+
+        refreshScheduled = true;
+        if (refreshCallback != null) {
+            Choreographer.getInstance().postFrameCallbackDelayed(refreshCallback, REFRESH_INTERVAL_MILLIS);
+        } else {
+            postDelayed(refreshRunnable, REFRESH_INTERVAL_MILLIS);
+        }
+    }
+
+    private void cancelRefresh() {
+        if (!refreshScheduled) return;
+
+        refreshScheduled = false;
+        if (refreshCallback != null) {
+            Choreographer.getInstance().removeFrameCallback(refreshCallback);
+        } else {
+            removeCallbacks(refreshRunnable);
+        }
+    }
+
+    private void refresh() {
+        final TextureVideoView view = videoView;
+        final FramePacingMonitor framePacing = view.getFramePacingMonitor();
+
+        int line = 0;
+        clear(line);
+        append(line, "fps ");
+        appendTenths(line, framePacing.getEffectiveFrameRate());
+        append(line, " / ");
+        appendTenths(line, framePacing.getContentFrameRate());
+        append(line, "  dropped ");
+        append(line, framePacing.getDroppedFrameCount());
+
+        clear(++line);
+        append(line, "buffer ");
+        append(line, view.getBufferPercentage());
+        append(line, "%  stalls ");
+        append(line, view.getStallTracker().getStallCount());
+
+        clear(++line);
+        append(line, "state ");
+        append(line, stateName(view.getCurrentState()));
+        append(line, " -> ");
+        append(line, stateName(view.getTargetState()));
+
+        clear(++line);
+        final DecoderBudget budget = DecoderBudget.getInstance();
+        append(line, "decoders ");
+        append(line, budget.getUsedDecoders());
+        append(line, "/");
+        if (budget.getMaxDecoders() == Integer.MAX_VALUE) {
+            append(line, "-");
+        } else {
+            append(line, budget.getMaxDecoders());
+        }
+        append(line, " waiting ");
+        append(line, budget.getWaitingCount());
+
+        clear(++line);
+        append(line, "ttff ");
+        final long timeToFirstFrame = view.getStartupTiming().getTimeToFirstFrameNanos();
+        if (timeToFirstFrame == 0) {
+            append(line, "-");
+        } else {
+            append(line, timeToFirstFrame / 1000000);
+            append(line, " ms");
+        }
+    }
+
+    private static String stateName(int state) {
+        final int index = state + 1;
+        return index >= 0 && index < STATE_NAMES.length ? STATE_NAMES[index] : "?";
+    }
+
+    private void clear(int line) {
+        lineLengths[line] = 0;
+    }
+
+    private void append(int line, String text) {
+        final int length = Math.min(text.length(), LINE_CAPACITY - lineLengths[line]);
+        text.getChars(0, length, lines[line], lineLengths[line]);
+        lineLengths[line] += length;
+    }
+
+    private void append(int line, long value) {
+        if (value < 0) {
+            append(line, "-");
+            value = -value;
+        }
+        final char[] chars = lines[line];
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        if (lineLengths[line] + digits > LINE_CAPACITY) return;
+
+        for (int i = lineLengths[line] + digits - 1; i >= lineLengths[line]; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        lineLengths[line] += digits;
+    }
+
+    private void appendTenths(int line, float value) {
+        final long tenths = Math.round(value * 10);
+        append(line, tenths / 10);
+        append(line, ".");
+        append(line, tenths % 10);
+    }
+}
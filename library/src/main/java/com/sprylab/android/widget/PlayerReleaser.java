@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget;
+
+import android.media.MediaPlayer;
+import android.os.Process;
+import android.util.Log;
+
+import com.sprylab.android.widget.metrics.MediaPlayerProfiler;
+import com.sprylab.android.widget.metrics.PlaybackMetrics;
+import com.sprylab.android.widget.metrics.PlaybackTrace;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops and releases {@link MediaPlayer} instances no longer used by a {@link TextureVideoView} or
+ * the {@link VideoPreloader}, either on the calling thread or on a bounded background executor,
+ * and keeps track of how long releasing takes.
+ * <p>
+ * Released players are handed back to the {@link MediaPlayerPool}. If more than
+ * {@value #MAX_PENDING_RELEASES} releases are pending, further players are released on the calling
+ * thread.
+ */
+public final class PlayerReleaser {
+
+    private static final String TAG = PlayerReleaser.class.getSimpleName();
+
+    static final int MAX_PENDING_RELEASES = 16;
+
+    private static final PlayerReleaser INSTANCE = new PlayerReleaser();
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_PENDING_RELEASES), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TextureVideoView-Release");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private long releaseCount;
+    private long totalReleaseNanos;
+    private long maxReleaseNanos;
+    private long rejectedCount;
+
+    private PlayerReleaser() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the process-wide releaser instance.
+     */
+    public static PlayerReleaser getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Releases the player on the calling thread.
+     *
+     * @param mediaPlayer the player to release.
+     * @param stop        whether to {@link MediaPlayer#stop() stop} the player first.
+     */
+    void release(MediaPlayer mediaPlayer, boolean stop) {
+        final long traceStart = PlaybackTrace.begin(PlaybackTrace.RELEASE);
+        final long start = System.nanoTime();
+        try {
+            if (stop) {
+                final long stopStart = MediaPlayerProfiler.begin();
+                mediaPlayer.stop();
+                MediaPlayerProfiler.end(MediaPlayerProfiler.STOP, stopStart);
+            }
+        } catch (IllegalStateException ex) {
+            Log.w(TAG, "Unable to stop player.", ex);
+        } finally {
+            MediaPlayerPool.getInstance().recycle(mediaPlayer);
+            recordRelease(System.nanoTime() - start);
+            PlaybackTrace.end(PlaybackTrace.RELEASE, traceStart);
+        }
+    }
+
+    /**
+     * Releases the player in the background.
+     *
+     * @param mediaPlayer the player to release.
+     * @param stop        whether to {@link MediaPlayer#stop() stop} the player first.
+     * @param onReleased  run on the main thread once the player has been released, may be
+     *                    {@code null}.
+     */
+    void releaseAsync(final MediaPlayer mediaPlayer, final boolean stop, final Runnable onReleased) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                release(mediaPlayer, stop);
+                if (onReleased != null) {
+                    PlayerThread.postToMain(onReleased);
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            synchronized (this) {
+                rejectedCount++;
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * @return the number of releases waiting for the background executor.
+     */
+    public int getPendingCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of released players.
+     */
+    public synchronized long getReleaseCount() {
+        return releaseCount;
+    }
+
+    /**
+     * @return the average time it took to stop and release a player in nanoseconds.
+     */
+    public synchronized long getAverageReleaseNanos() {
+        return releaseCount == 0 ? 0 : totalReleaseNanos / releaseCount;
+    }
+
+    /**
+     * @return the longest time it took to stop and release a player in nanoseconds.
+     */
+    public synchronized long getMaxReleaseNanos() {
+        return maxReleaseNanos;
+    }
+
+    /**
+     * @return the number of background releases that had to run on the calling thread because too
+     * many releases were pending.
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public synchronized void resetStatistics() {
+        releaseCount = 0;
+        totalReleaseNanos = 0;
+        maxReleaseNanos = 0;
+        rejectedCount = 0;
+    }
+
+    private synchronized void recordRelease(long duration) {
+        TextureVideoView.getPlaybackMetrics().recordLatency(PlaybackMetrics.HISTOGRAM_RELEASE, duration);
+        releaseCount++;
+        totalReleaseNanos += duration;
+        if (duration > maxReleaseNanos) {
+            maxReleaseNanos = duration;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * The command queue used by {@link TextureVideoView#setPlayerThreadEnabled(boolean)} to run blocking
+ * {@link android.media.MediaPlayer} calls off the main thread. All commands are executed in order on
+ * a single, lazily started {@link HandlerThread} shared by all views.
+ */
+final class PlayerThread {
+
+    private static final String TAG = PlayerThread.class.getSimpleName();
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private static Handler handler;
+
+    private PlayerThread() {
+    }
+
+    /**
+     * Enqueues a command for the player thread.
+     */
+    static void post(final Runnable command) {
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    command.run();
+                } catch (RuntimeException ex) {
+                    Log.w(TAG, "Player command failed.", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Posts a state change back to the main thread.
+     */
+    static void postToMain(Runnable runnable) {
+        MAIN_HANDLER.post(runnable);
+    }
+
+    private static synchronized Handler getHandler() {
+        if (handler == null) {
+            final HandlerThread thread = new HandlerThread("TextureVideoView-Player");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Keeps track of all {@link TextureVideoView}s that retained their
+ * {@link android.graphics.SurfaceTexture} and {@link android.media.MediaPlayer} while being detached
+ * from their window (see {@link TextureVideoView#setSurfaceRetentionEnabled(boolean)}).
+ * <p>
+ * At most {@link #setMaxRetained(int)} views are allowed to retain their resources at the same time;
+ * if the limit is exceeded, the view that has been detached the longest releases its texture and
+ * player.
+ * <p>
+ * All methods must be called from the main thread.
+ */
+public final class SurfaceTextureRetainer {
+
+    private static final int DEFAULT_MAX_RETAINED = 2;
+
+    private static final SurfaceTextureRetainer INSTANCE = new SurfaceTextureRetainer();
+
+    private final LinkedHashSet<TextureVideoView> retainedViews = new LinkedHashSet<>();
+
+    private int maxRetained = DEFAULT_MAX_RETAINED;
+
+    private SurfaceTextureRetainer() {
+    }
+
+    /**
+     * @return the process-wide retainer instance.
+     */
+    public static SurfaceTextureRetainer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the maximum number of detached views that may retain their texture and player. Surplus
+     * views are evicted immediately.
+     *
+     * @param maxRetained the maximum number of retained textures.
+     */
+    public void setMaxRetained(int maxRetained) {
+        if (maxRetained < 0) {
+            throw new IllegalArgumentException("maxRetained must not be negative: " + maxRetained);
+        }
+        this.maxRetained = maxRetained;
+        trimToSize(maxRetained);
+    }
+
+    public int getMaxRetained() {
+        return maxRetained;
+    }
+
+    public int getRetainedCount() {
+        return retainedViews.size();
+    }
+
+    /**
+     * Releases the textures and players of all detached views.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    void retain(TextureVideoView view) {
+        retainedViews.remove(view);
+        retainedViews.add(view);
+        trimToSize(maxRetained);
+    }
+
+    void remove(TextureVideoView view) {
+        retainedViews.remove(view);
+    }
+
+    private void trimToSize(int size) {
+        if (retainedViews.size() <= size) return;
+
+        // evicting calls back into remove(), so collect the views first
+        final List<TextureVideoView> evicted = new ArrayList<>();
+        final Iterator<TextureVideoView> iterator = retainedViews.iterator();
+        while (retainedViews.size() - evicted.size() > size && iterator.hasNext()) {
+            evicted.add(iterator.next());
+        }
+        for (TextureVideoView view : evicted) {
+            retainedViews.remove(view);
+            view.releaseRetainedSurface();
+        }
+    }
+}
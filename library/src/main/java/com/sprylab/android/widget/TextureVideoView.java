@@ -17,7 +17,9 @@ package com.sprylab.android.widget;
  */
 
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.SurfaceTexture;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
@@ -25,6 +27,7 @@ import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnInfoListener;
 import android.net.Uri;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -37,6 +40,21 @@ import android.view.accessibility.AccessibilityNodeInfo;
 import android.widget.MediaController;
 import android.widget.MediaController.MediaPlayerControl;
 
+import com.sprylab.android.widget.cache.CacheProxy;
+import com.sprylab.android.widget.metrics.FlightRecorder;
+import com.sprylab.android.widget.metrics.FramePacingMonitor;
+import com.sprylab.android.widget.metrics.MainThreadWatchdog;
+import com.sprylab.android.widget.metrics.MediaPlayerProfiler;
+import com.sprylab.android.widget.metrics.MetricsRegistry;
+import com.sprylab.android.widget.metrics.PlaybackMetrics;
+import com.sprylab.android.widget.metrics.PlaybackSession;
+import com.sprylab.android.widget.metrics.PlaybackTrace;
+import com.sprylab.android.widget.metrics.SessionEventWriter;
+import com.sprylab.android.widget.metrics.StallTracker;
+import com.sprylab.android.widget.metrics.StartupStatistics;
+import com.sprylab.android.widget.metrics.StartupTiming;
+
+import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 
@@ -67,6 +85,14 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
     private static final String TAG = TextureVideoView.class.getSimpleName();
 
+    private static volatile PlaybackMetrics playbackMetrics = MetricsRegistry.getDefault();
+
+    private static SessionEventWriter sessionEventWriter;
+
+    private static CacheProxy cacheProxy;
+
+    private static final long POSITION_CHECK_INTERVAL_NANOS = 1000000000L;
+
     private static final int STATE_ERROR = -1;
     private static final int STATE_IDLE = 0;
     private static final int STATE_PREPARING = 1;
@@ -100,6 +126,45 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     private boolean canPause;
     private boolean canSeekBack;
     private boolean canSeekForward;
+    private boolean surfaceRetentionEnabled;
+    private boolean playerThreadEnabled;
+    // whether the commands of the current player are queued on the PlayerThread; fixed for the
+    // lifetime of the player so that they stay in order
+    private boolean playerOnPlayerThread;
+    private int decoderPriority;
+    private long idleReleaseTimeout;
+    private boolean idleReleaseOnTrimMemory;
+    private boolean idleReleased;     // the player was released while paused
+    private int idleDuration;         // the duration of the video released while paused
+    private final StartupTiming startupTiming = new StartupTiming();
+    private OnStartupTimingListener startupTimingListener;
+    private final FramePacingMonitor framePacingMonitor = new FramePacingMonitor();
+    private final StallTracker stallTracker = new StallTracker();
+    private long reportedDroppedFrames;
+
+    private PlaybackSession session;
+    private long lastPositionCheckNanos;
+    private final FlightRecorder flightRecorder = new FlightRecorder();
+    private File flightRecorderDumpDirectory;
+    private SurfaceTexture retainedSurfaceTexture;
+    // View.isAttachedToWindow() requires API 19
+    private boolean attachedToWindow;
+
+    /**
+     * Interface definition of a callback to be invoked when the first frame of a video has been
+     * rendered.
+     */
+    public interface OnStartupTimingListener {
+        /**
+         * Called when the first frame of a video set by {@link #setVideoURI(Uri, Map)} has been
+         * rendered.
+         *
+         * @param view   the view showing the video
+         * @param timing the timestamps of the startup phases; the instance is reused for the next
+         *               video, so copy the values you want to keep
+         */
+        void onStartupTiming(TextureVideoView view, StartupTiming timing);
+    }
 
     public TextureVideoView(Context context) {
         super(context);
@@ -192,6 +257,20 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
         return getDefaultSize(desiredSize, measureSpec);
     }
 
+    private void setCurrentState(int state) {
+        if (currentState != state) {
+            flightRecorder.record(FlightRecorder.EVENT_STATE, currentState, state);
+            currentState = state;
+        }
+    }
+
+    private void setTargetState(int state) {
+        if (targetState != state) {
+            flightRecorder.record(FlightRecorder.EVENT_TARGET_STATE, targetState, state);
+            targetState = state;
+        }
+    }
+
     private void initVideoView() {
         videoWidth = 0;
         videoHeight = 0;
@@ -199,8 +278,8 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
         setFocusable(true);
         setFocusableInTouchMode(true);
         requestFocus();
-        currentState = STATE_IDLE;
-        targetState = STATE_IDLE;
+        setCurrentState(STATE_IDLE);
+        setTargetState(STATE_IDLE);
     }
 
     /**
@@ -232,41 +311,227 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
      *                to disallow or allow cross domain redirection.
      */
     public void setVideoURI(Uri uri, Map<String, String> headers) {
-        this.uri = uri;
+        final long now = System.nanoTime();
+        startupTiming.begin(now);
+        if (surface != null) {
+            startupTiming.markSurfaceAvailable(now);
+        }
+        framePacingMonitor.reset();
+        reportedDroppedFrames = 0;
+        // report a stall of the previous video before the statistics are cleared
+        setStallTrackerPlaying(false);
+        stallTracker.reset();
+        flightRecorder.record(FlightRecorder.EVENT_SET_VIDEO_URI, uri != null ? uri.hashCode() : 0,
+                headers != null ? headers.size() : 0);
+        endSession();
+        if (sessionEventWriter != null && uri != null) {
+            session = new PlaybackSession(uri.toString());
+        }
+        this.uri = proxyUri(uri);
         this.headers = headers;
         seekWhenPrepared = 0;
+        // the snapshot of a video released while paused belongs to the previous URI
+        idleReleased = false;
+        idleDuration = 0;
         openVideo();
         requestLayout();
         invalidate();
     }
 
+    /**
+     * Starts preparing a video before it is shown. A TextureVideoView that is later set to the same
+     * URI and headers adopts the prepared player instead of preparing the video again.
+     * Must be called from the main thread.
+     *
+     * @param context the context used to resolve the URI.
+     * @param uri     the URI of the video.
+     * @param headers the headers for the URI request, may be {@code null}.
+     * @see VideoPreloader
+     */
+    public static void preload(Context context, Uri uri, Map<String, String> headers) {
+        VideoPreloader.getInstance().preload(context, proxyUri(uri), headers);
+    }
+
+    /**
+     * Routes the http(s) videos set afterwards through the given caching proxy, which must have
+     * been {@link CacheProxy#start() started}. Must be called from the main thread.
+     *
+     * @param proxy the proxy, {@code null} to load videos directly (default).
+     */
+    public static void setCacheProxy(CacheProxy proxy) {
+        cacheProxy = proxy;
+    }
+
+    public static CacheProxy getCacheProxy() {
+        return cacheProxy;
+    }
+
+    private static Uri proxyUri(Uri uri) {
+        if (uri == null || cacheProxy == null) return uri;
+
+        final String url = uri.toString();
+        final String proxyUrl = cacheProxy.getProxyUrl(url);
+        return proxyUrl.equals(url) ? uri : Uri.parse(proxyUrl);
+    }
+
+    /**
+     * Sets the metrics all TextureVideoViews and their helpers report into. Defaults to
+     * {@link MetricsRegistry#getDefault()}.
+     *
+     * @param metrics the metrics, {@link PlaybackMetrics#NONE} to disable reporting.
+     */
+    public static void setPlaybackMetrics(PlaybackMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null, use PlaybackMetrics.NONE instead");
+        }
+        playbackMetrics = metrics;
+    }
+
+    public static PlaybackMetrics getPlaybackMetrics() {
+        return playbackMetrics;
+    }
+
+    /**
+     * Sets the writer that receives a {@link PlaybackSession} with the analytics events of every
+     * video shown by a TextureVideoView once it is stopped or replaced. Must be called from the main
+     * thread.
+     *
+     * @param writer the writer, {@code null} to disable sessions (default).
+     */
+    public static void setSessionEventWriter(SessionEventWriter writer) {
+        sessionEventWriter = writer;
+    }
+
+    public static SessionEventWriter getSessionEventWriter() {
+        return sessionEventWriter;
+    }
+
+    private void recordSessionEvent(int type, int arg) {
+        if (session != null) {
+            session.record(type, arg);
+        }
+    }
+
+    /**
+     * Tells the stall tracker whether the video is playing. A stall ended by pausing or stopping is
+     * reported like one that ends when the player has buffered enough.
+     */
+    private void setStallTrackerPlaying(boolean playing) {
+        onStallEnded(stallTracker.setPlaying(playing, System.nanoTime()));
+    }
+
+    private void onStallEnded(long stallNanos) {
+        if (stallNanos == 0) return;
+
+        playbackMetrics.recordLatency(PlaybackMetrics.HISTOGRAM_STALL_DURATION, stallNanos);
+        recordSessionEvent(PlaybackSession.EVENT_STALL_END, (int) (stallNanos / 1000000));
+    }
+
+    private void endSession() {
+        if (session == null) return;
+
+        if (sessionEventWriter != null) {
+            sessionEventWriter.submit(session);
+        }
+        session = null;
+    }
+
     public void stopPlayback() {
+        final long watchdogToken = MainThreadWatchdog.begin(MainThreadWatchdog.STOP_PLAYBACK);
+        try {
+            flightRecorder.record(FlightRecorder.EVENT_STOP_PLAYBACK);
+            setStallTrackerPlaying(false);
+            endSession();
+            DecoderBudget.getInstance().release(this);
+            idleReleased = false;
+            if (mediaPlayer != null) {
+                recyclePlayer(mediaPlayer, true, false, null);
+                mediaPlayer = null;
+                setCurrentState(STATE_IDLE);
+                setTargetState(STATE_IDLE);
+                AudioManager am = (AudioManager) getContext().getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
+                am.abandonAudioFocus(null);
+            }
+        } finally {
+            MainThreadWatchdog.end(watchdogToken);
+        }
+    }
+
+    /**
+     * Stops the playback like {@link #stopPlayback()}, but stops and releases the media player in
+     * the background so that the calling thread is never blocked.
+     *
+     * @param onReleased run on the main thread once the player has been released, may be
+     *                   {@code null}.
+     */
+    public void stopPlaybackAsync(Runnable onReleased) {
+        flightRecorder.record(FlightRecorder.EVENT_STOP_PLAYBACK);
+        setStallTrackerPlaying(false);
+        endSession();
+        DecoderBudget.getInstance().release(this);
+        idleReleased = false;
         if (mediaPlayer != null) {
-            mediaPlayer.stop();
-            mediaPlayer.release();
+            recyclePlayer(mediaPlayer, true, true, onReleased);
             mediaPlayer = null;
-            currentState = STATE_IDLE;
-            targetState = STATE_IDLE;
+            setCurrentState(STATE_IDLE);
+            setTargetState(STATE_IDLE);
             AudioManager am = (AudioManager) getContext().getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
             am.abandonAudioFocus(null);
+        } else if (onReleased != null) {
+            onReleased.run();
         }
     }
 
     private void openVideo() {
-        if (uri == null || surface == null) return;
+        final long watchdogToken = MainThreadWatchdog.begin(MainThreadWatchdog.OPEN_VIDEO);
+        final long traceStart = PlaybackTrace.begin(PlaybackTrace.OPEN_VIDEO);
+        try {
+            openVideoInternal();
+        } finally {
+            PlaybackTrace.end(PlaybackTrace.OPEN_VIDEO, traceStart);
+            MainThreadWatchdog.end(watchdogToken);
+        }
+    }
+
+    private void openVideoInternal() {
+        // preparing doesn't need the surface, it is attached as soon as it becomes available
+        if (uri == null) return;
+        // but without a window, nothing would ever release the player; preparing starts in
+        // onAttachedToWindow() instead
+        if (!attachedToWindow && surface == null) return;
+
+        // if all decoders are in use, the video is opened in onDecoderGranted()
+        if (!DecoderBudget.getInstance().acquire(this)) return;
+
+        idleReleased = false;
+        removeCallbacks(idleReleaseRunnable);
 
         // we shouldn't clear the target state, because somebody might have
         // called start() previously
-        release(false);
+        release(false, false);
 
         AudioManager am = (AudioManager) getContext().getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
         am.requestAudioFocus(null, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
 
+        // adopt a player prepared by the VideoPreloader if there is one
+        final VideoPreloader.PreloadedPlayer preloaded = VideoPreloader.getInstance().take(uri, headers);
+        playbackMetrics.incrementCounter(PlaybackMetrics.COUNTER_VIDEOS_OPENED, 1);
+        if (preloaded != null) {
+            playbackMetrics.incrementCounter(PlaybackMetrics.COUNTER_PRELOAD_HITS, 1);
+        }
+        playerOnPlayerThread = playerThreadEnabled;
+
         try {
-            mediaPlayer = new MediaPlayer();
+            if (preloaded != null) {
+                mediaPlayer = preloaded.mediaPlayer;
+                // the session of a prepared player can't be changed anymore
+                audioSession = mediaPlayer.getAudioSessionId();
+            } else {
+                mediaPlayer = MediaPlayerPool.getInstance().acquire();
 
-            if (audioSession != 0) mediaPlayer.setAudioSessionId(audioSession);
-            else audioSession = mediaPlayer.getAudioSessionId();
+                if (audioSession != 0) mediaPlayer.setAudioSessionId(audioSession);
+                else audioSession = mediaPlayer.getAudioSessionId();
+            }
 
             mediaPlayer.setOnPreparedListener(mPreparedListener);
             mediaPlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
@@ -275,23 +540,260 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
             mediaPlayer.setOnInfoListener(internalInfoListener);
             mediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
             currentBufferPercentage = 0;
-            mediaPlayer.setDataSource(getContext().getApplicationContext(), uri, headers);
-            mediaPlayer.setSurface(surface);
-            mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            mediaPlayer.setScreenOnWhilePlaying(true);
-            mediaPlayer.prepareAsync();
+            if (preloaded != null) {
+                if (surface != null) {
+                    setSurface(mediaPlayer, surface);
+                }
+                mediaPlayer.setScreenOnWhilePlaying(true);
+            } else if (playerOnPlayerThread) {
+                preparePlayerAsync(mediaPlayer);
+            } else {
+                preparePlayer(mediaPlayer, getContext().getApplicationContext(), uri, headers, surface);
+            }
+            startupTiming.markPrepareIssued(System.nanoTime());
 
             // we don't set the target state here either, but preserve the
             // target state that was there before.
-            currentState = STATE_PREPARING;
+            setCurrentState(STATE_PREPARING);
             attachMediaController();
+
+            if (preloaded != null && preloaded.prepared) {
+                // also ends the PREPARE span begun by the preloader
+                mPreparedListener.onPrepared(mediaPlayer);
+            }
         } catch (IOException | IllegalArgumentException ex) {
-            currentState = STATE_ERROR;
-            targetState = STATE_ERROR;
+            setCurrentState(STATE_ERROR);
+            setTargetState(STATE_ERROR);
             internalErrorListener.onError(mediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
         }
     }
 
+    private static void preparePlayer(MediaPlayer mp, Context context, Uri uri, Map<String, String> headers,
+                                      Surface surface) throws IOException {
+        long start = MediaPlayerProfiler.begin();
+        mp.setDataSource(context, uri, headers);
+        MediaPlayerProfiler.end(MediaPlayerProfiler.SET_DATA_SOURCE, start);
+        if (surface != null) {
+            setSurface(mp, surface);
+        }
+        mp.setScreenOnWhilePlaying(true);
+        mp.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        PlaybackTrace.beginAsync(PlaybackTrace.PREPARE, System.identityHashCode(mp));
+        final long traceStart = PlaybackTrace.begin(PlaybackTrace.PREPARE_ASYNC);
+        start = MediaPlayerProfiler.begin();
+        mp.prepareAsync();
+        MediaPlayerProfiler.end(MediaPlayerProfiler.PREPARE_ASYNC, start);
+        PlaybackTrace.end(PlaybackTrace.PREPARE_ASYNC, traceStart);
+    }
+
+    private static void setSurface(MediaPlayer mp, Surface surface) {
+        final long start = MediaPlayerProfiler.begin();
+        mp.setSurface(surface);
+        MediaPlayerProfiler.end(MediaPlayerProfiler.SET_SURFACE, start);
+    }
+
+    private void preparePlayerAsync(final MediaPlayer mp) {
+        final Context context = getContext().getApplicationContext();
+        final Uri uri = this.uri;
+        final Map<String, String> headers = this.headers;
+        final Surface surface = this.surface;
+        PlayerThread.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    preparePlayer(mp, context, uri, headers, surface);
+                } catch (IOException | IllegalArgumentException | IllegalStateException ex) {
+                    Log.w(TAG, "Unable to open " + uri, ex);
+                    PlayerThread.postToMain(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mp != mediaPlayer) return;
+                            setCurrentState(STATE_ERROR);
+                            setTargetState(STATE_ERROR);
+                            internalErrorListener.onError(mp, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void attachSurface(final MediaPlayer mp, final Surface surface) {
+        if (!playerOnPlayerThread) {
+            setSurface(mp, surface);
+            return;
+        }
+        PlayerThread.post(new Runnable() {
+            @Override
+            public void run() {
+                setSurface(mp, surface);
+            }
+        });
+    }
+
+    private void recyclePlayer(final MediaPlayer mp, final boolean stop, boolean async, final Runnable onReleased) {
+        if (playerOnPlayerThread) {
+            // keep the order with commands still queued for this player
+            PlayerThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    PlayerReleaser.getInstance().release(mp, stop);
+                    if (onReleased != null) {
+                        PlayerThread.postToMain(onReleased);
+                    }
+                }
+            });
+        } else if (async) {
+            PlayerReleaser.getInstance().releaseAsync(mp, stop, onReleased);
+        } else {
+            PlayerReleaser.getInstance().release(mp, stop);
+            if (onReleased != null) {
+                onReleased.run();
+            }
+        }
+    }
+
+    /**
+     * Enables or disables running the blocking {@link MediaPlayer} lifecycle calls
+     * ({@code setDataSource()}, {@code prepareAsync()}, {@code setSurface()}, {@code stop()},
+     * {@code reset()} and {@code release()}) in order on a dedicated player thread instead of the
+     * main thread. Player events and state changes are still delivered on the main thread, and the
+     * {@link MediaPlayerControl} methods keep their semantics.
+     * <p>
+     * Takes effect with the next video; a player keeps the mode it was created with, and one
+     * {@link #transferPlaybackTo(TextureVideoView) transferred} from a view with the player thread
+     * enabled keeps using it.
+     *
+     * @param enabled {@code true} to use the player thread.
+     */
+    public void setPlayerThreadEnabled(boolean enabled) {
+        playerThreadEnabled = enabled;
+    }
+
+    public boolean isPlayerThreadEnabled() {
+        return playerThreadEnabled;
+    }
+
+    /**
+     * Sets the priority of this view for the {@link DecoderBudget}. If more views want to play a
+     * video than decoders are available, the views with the lowest priority are suspended and
+     * continue at their last position once a decoder becomes available. A typical priority is the
+     * visible percentage of the view.
+     *
+     * @param priority the priority, higher values win; {@code 0} by default.
+     */
+    public void setDecoderPriority(int priority) {
+        if (decoderPriority == priority) return;
+        decoderPriority = priority;
+        DecoderBudget.getInstance().onPriorityChanged(this);
+    }
+
+    public int getDecoderPriority() {
+        return decoderPriority;
+    }
+
+    void onDecoderRevoked() {
+        // remember where we are, the video is reopened in onDecoderGranted()
+        if (isInPlaybackState()) {
+            seekWhenPrepared = mediaPlayer.getCurrentPosition();
+        }
+        if (mediaController != null) mediaController.hide();
+        release(false, false);
+        playbackMetrics.incrementCounter(PlaybackMetrics.COUNTER_DECODER_REVOCATIONS, 1);
+    }
+
+    void onDecoderGranted() {
+        openVideo();
+    }
+
+    /**
+     * Hands the media player of this view over to another view without interrupting playback, e.g.
+     * when switching from an inline player to fullscreen. The target adopts the player, its state,
+     * the video URI, the playback session, the startup timing and the registered listeners (unless
+     * it has its own), and the video output is switched to the target's surface. Any video of the
+     * target is released.
+     * <p>
+     * This view is left in the idle state without a video.
+     *
+     * @param target the view that continues the playback.
+     */
+    public void transferPlaybackTo(TextureVideoView target) {
+        if (target == null) {
+            throw new IllegalArgumentException("target must not be null");
+        }
+        if (target == this || mediaPlayer == null) return;
+
+        if (target.mediaPlayer != null) {
+            target.release(true);
+            // releasing the target abandoned the audio focus we're holding
+            AudioManager am = (AudioManager) getContext().getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
+            am.requestAudioFocus(null, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
+        }
+
+        DecoderBudget.getInstance().transfer(this, target);
+
+        final MediaPlayer mp = mediaPlayer;
+        target.mediaPlayer = mp;
+        target.uri = uri;
+        target.headers = headers;
+        target.audioSession = audioSession;
+        target.videoWidth = videoWidth;
+        target.videoHeight = videoHeight;
+        target.currentBufferPercentage = currentBufferPercentage;
+        target.seekWhenPrepared = seekWhenPrepared;
+        target.canPause = canPause;
+        target.canSeekBack = canSeekBack;
+        target.canSeekForward = canSeekForward;
+        target.setCurrentState(currentState);
+        target.setTargetState(targetState);
+        // one playback is one session, whichever view shows it; a stall is reported before the
+        // session moves
+        setStallTrackerPlaying(false);
+        target.endSession();
+        target.session = session;
+        session = null;
+        target.startupTiming.copyFrom(startupTiming);
+        startupTiming.clear();
+        target.stallTracker.reset();
+        if (stallTracker.isRenderingStarted()) {
+            target.stallTracker.markRenderingStart(System.nanoTime());
+        }
+        target.setStallTrackerPlaying(currentState == STATE_PLAYING);
+        if (target.preparedListener == null) target.preparedListener = preparedListener;
+        if (target.completionListener == null) target.completionListener = completionListener;
+        if (target.errorListener == null) target.errorListener = errorListener;
+        if (target.infoListener == null) target.infoListener = infoListener;
+
+        mp.setOnPreparedListener(target.mPreparedListener);
+        mp.setOnVideoSizeChangedListener(target.mSizeChangedListener);
+        mp.setOnCompletionListener(target.mCompletionListener);
+        mp.setOnErrorListener(target.internalErrorListener);
+        mp.setOnInfoListener(target.internalInfoListener);
+        mp.setOnBufferingUpdateListener(target.mBufferingUpdateListener);
+        // commands of the source may still be queued on the player thread, so the target keeps
+        // using it for this player if either view does
+        target.playerOnPlayerThread = playerOnPlayerThread || target.playerThreadEnabled;
+        // a null surface detaches ours, the target's is attached once it becomes available
+        target.attachSurface(mp, target.surface);
+
+        target.updateSurfaceTextureSize();
+        if (target.surface != null && target.targetState == STATE_PLAYING) {
+            // playback may have been deferred for lack of a surface
+            target.start();
+        }
+        target.attachMediaController();
+        target.requestLayout();
+        target.invalidate();
+
+        if (mediaController != null) mediaController.hide();
+        mediaPlayer = null;
+        uri = null;
+        headers = null;
+        seekWhenPrepared = 0;
+        setCurrentState(STATE_IDLE);
+        setTargetState(STATE_IDLE);
+    }
+
     public void setMediaController(MediaController controller) {
         if (mediaController != null) mediaController.hide();
         mediaController = controller;
@@ -311,10 +813,12 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     MediaPlayer.OnVideoSizeChangedListener mSizeChangedListener =
             new MediaPlayer.OnVideoSizeChangedListener() {
                 public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+                    if (mp != mediaPlayer) return;
                     videoWidth = mp.getVideoWidth();
                     videoHeight = mp.getVideoHeight();
+                    flightRecorder.record(FlightRecorder.EVENT_VIDEO_SIZE_CHANGED, videoWidth, videoHeight);
                     if (videoWidth != 0 && videoHeight != 0) {
-                        getSurfaceTexture().setDefaultBufferSize(videoWidth, videoHeight);
+                        updateSurfaceTextureSize();
                         requestLayout();
                     }
                 }
@@ -322,45 +826,63 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
     MediaPlayer.OnPreparedListener mPreparedListener = new MediaPlayer.OnPreparedListener() {
         public void onPrepared(MediaPlayer mp) {
-            currentState = STATE_PREPARED;
+            // events of a player released on the player thread may still be queued
+            if (mp != mediaPlayer) return;
+
+            PlaybackTrace.endAsync(PlaybackTrace.PREPARE, System.identityHashCode(mp));
+            final long traceStart = PlaybackTrace.begin(PlaybackTrace.ON_PREPARED);
+            try {
+                if (startupTiming.isRunning() && startupTiming.getPreparedNanos() == 0) {
+                    startupTiming.markPrepared(System.nanoTime());
+                    playbackMetrics.recordLatency(PlaybackMetrics.HISTOGRAM_TIME_TO_PREPARED,
+                            startupTiming.getTimeToPreparedNanos());
+                }
+                setCurrentState(STATE_PREPARED);
 
-            canPause = canSeekBack = canSeekForward = true;
+                canPause = canSeekBack = canSeekForward = true;
 
-            if (preparedListener != null) {
-                preparedListener.onPrepared(mediaPlayer);
-            }
-            if (mediaController != null) {
-                mediaController.setEnabled(true);
-            }
-            videoWidth = mp.getVideoWidth();
-            videoHeight = mp.getVideoHeight();
+                if (preparedListener != null) {
+                    preparedListener.onPrepared(mediaPlayer);
+                }
+                if (mediaController != null) {
+                    mediaController.setEnabled(true);
+                }
+                videoWidth = mp.getVideoWidth();
+                videoHeight = mp.getVideoHeight();
+                flightRecorder.record(FlightRecorder.EVENT_PREPARED, videoWidth, videoHeight);
+                if (session != null) {
+                    session.setDurationMillis(mp.getDuration());
+                }
 
-            int seekToPosition = seekWhenPrepared;  // seekWhenPrepared may be changed after seekTo() call
-            if (seekToPosition != 0) {
-                seekTo(seekToPosition);
-            }
-            if (videoWidth != 0 && videoHeight != 0) {
-                getSurfaceTexture().setDefaultBufferSize(videoWidth, videoHeight);
-                // We won't get a "surface changed" callback if the surface is already the right size, so
-                // start the video here instead of in the callback.
-                if (targetState == STATE_PLAYING) {
-                    start();
-                    if (mediaController != null) {
-                        mediaController.show();
+                int seekToPosition = seekWhenPrepared;  // seekWhenPrepared may be changed after seekTo() call
+                if (seekToPosition != 0) {
+                    seekTo(seekToPosition);
+                }
+                if (videoWidth != 0 && videoHeight != 0) {
+                    updateSurfaceTextureSize();
+                    // We won't get a "surface changed" callback if the surface is already the right size, so
+                    // start the video here instead of in the callback.
+                    if (targetState == STATE_PLAYING) {
+                        start();
+                        if (mediaController != null) {
+                            mediaController.show();
+                        }
+                    } else if (!isPlaying() &&
+                            (seekToPosition != 0 || getCurrentPosition() > 0)) {
+                        if (mediaController != null) {
+                            // Show the media controls when we're paused into a video and make 'em stick.
+                            mediaController.show(0);
+                        }
                     }
-                } else if (!isPlaying() &&
-                        (seekToPosition != 0 || getCurrentPosition() > 0)) {
-                    if (mediaController != null) {
-                        // Show the media controls when we're paused into a video and make 'em stick.
-                        mediaController.show(0);
+                } else {
+                    // We don't know the video size yet, but should start anyway.
+                    // The video size might be reported to us later.
+                    if (targetState == STATE_PLAYING) {
+                        start();
                     }
                 }
-            } else {
-                // We don't know the video size yet, but should start anyway.
-                // The video size might be reported to us later.
-                if (targetState == STATE_PLAYING) {
-                    start();
-                }
+            } finally {
+                PlaybackTrace.end(PlaybackTrace.ON_PREPARED, traceStart);
             }
         }
     };
@@ -368,8 +890,16 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     private MediaPlayer.OnCompletionListener mCompletionListener =
             new MediaPlayer.OnCompletionListener() {
                 public void onCompletion(MediaPlayer mp) {
-                    currentState = STATE_PLAYBACK_COMPLETED;
-                    targetState = STATE_PLAYBACK_COMPLETED;
+                    if (mp != mediaPlayer) return;
+                    flightRecorder.record(FlightRecorder.EVENT_COMPLETION);
+                    playbackMetrics.incrementCounter(PlaybackMetrics.COUNTER_COMPLETIONS, 1);
+                    if (session != null) {
+                        session.updatePosition(session.getDurationMillis());
+                        session.record(PlaybackSession.EVENT_COMPLETION, 0);
+                    }
+                    setCurrentState(STATE_PLAYBACK_COMPLETED);
+                    setStallTrackerPlaying(false);
+                    setTargetState(STATE_PLAYBACK_COMPLETED);
                     if (mediaController != null) {
                         mediaController.hide();
                     }
@@ -382,6 +912,20 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     private MediaPlayer.OnInfoListener internalInfoListener =
             new MediaPlayer.OnInfoListener() {
                 public boolean onInfo(MediaPlayer mp, int arg1, int arg2) {
+                    if (mp != mediaPlayer) return true;
+                    flightRecorder.record(FlightRecorder.EVENT_INFO, arg1, arg2);
+                    final long now = System.nanoTime();
+                    final long stallNanos = stallTracker.getCurrentStallNanos(now);
+                    stallTracker.onInfo(arg1, now);
+                    if (stallNanos == 0 && stallTracker.isStalled()) {
+                        playbackMetrics.incrementCounter(PlaybackMetrics.COUNTER_STALLS, 1);
+                        recordSessionEvent(PlaybackSession.EVENT_STALL_START, 0);
+                    } else if (stallNanos != 0 && !stallTracker.isStalled()) {
+                        onStallEnded(stallNanos);
+                    }
+                    if (arg1 == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+                        framePacingMonitor.markDiscontinuity();
+                    }
                     if (infoListener != null) infoListener.onInfo(mp, arg1, arg2);
                     return true;
                 }
@@ -390,9 +934,14 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     private final MediaPlayer.OnErrorListener internalErrorListener =
             new MediaPlayer.OnErrorListener() {
                 public boolean onError(MediaPlayer mp, int error, int extra) {
+                    if (mp != mediaPlayer) return true;
+                    flightRecorder.record(FlightRecorder.EVENT_ERROR, error, extra);
+                    playbackMetrics.incrementCounter(PlaybackMetrics.COUNTER_ERRORS, 1);
+                    recordSessionEvent(PlaybackSession.EVENT_ERROR, error);
 
-                    currentState = STATE_ERROR;
-                    targetState = STATE_ERROR;
+                    setCurrentState(STATE_ERROR);
+                    setTargetState(STATE_ERROR);
+                    setStallTrackerPlaying(false);
 
                     if (error == MediaPlayer.MEDIA_ERROR_NOT_VALID_FOR_PROGRESSIVE_PLAYBACK) {
                         //messageId = android.R.string.VideoView_error_text_invalid_progressive_playback;
@@ -402,6 +951,11 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
                     if (mediaController != null) mediaController.hide();
 
+                    if (flightRecorderDumpDirectory != null) {
+                        flightRecorder.dumpAsync(new File(flightRecorderDumpDirectory,
+                                "flight-" + System.currentTimeMillis() + ".bin"));
+                    }
+
                     if (errorListener != null)
                         errorListener.onError(mediaPlayer, error, extra);
 
@@ -412,6 +966,10 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     private MediaPlayer.OnBufferingUpdateListener mBufferingUpdateListener =
             new MediaPlayer.OnBufferingUpdateListener() {
                 public void onBufferingUpdate(MediaPlayer mp, int percent) {
+                    if (mp != mediaPlayer) return;
+                    if (percent != currentBufferPercentage) {
+                        flightRecorder.record(FlightRecorder.EVENT_BUFFERING_UPDATE, percent);
+                    }
                     currentBufferPercentage = percent;
                 }
             };
@@ -458,6 +1016,63 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
         infoListener = l;
     }
 
+    /**
+     * Register a callback to be invoked when the first frame of a video
+     * has been rendered, reporting how long each startup phase took.
+     * The timings of all videos are also aggregated in {@link StartupStatistics}.
+     *
+     * @param l The callback that will be run
+     */
+    public void setOnStartupTimingListener(OnStartupTimingListener l) {
+        startupTimingListener = l;
+    }
+
+    int getCurrentState() {
+        return currentState;
+    }
+
+    int getTargetState() {
+        return targetState;
+    }
+
+    /**
+     * @return the frame pacing statistics of the current video, reset whenever a video is set
+     */
+    public FramePacingMonitor getFramePacingMonitor() {
+        return framePacingMonitor;
+    }
+
+    /**
+     * @return the rebuffering statistics of the current video, reset whenever a video is set
+     */
+    public StallTracker getStallTracker() {
+        return stallTracker;
+    }
+
+    /**
+     * @return the recorder of the recent playback events of this view, enabled by default
+     */
+    public FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    /**
+     * Sets the directory the recent playback events are written to whenever an error occurs, see
+     * {@link FlightRecorder#dump(File)}.
+     *
+     * @param directory the directory, or {@code null} to not write the events (default)
+     */
+    public void setFlightRecorderDumpDirectory(File directory) {
+        flightRecorderDumpDirectory = directory;
+    }
+
+    /**
+     * @return the startup timestamps of the current video
+     */
+    public StartupTiming getStartupTiming() {
+        return startupTiming;
+    }
+
     TextureView.SurfaceTextureListener mSurfaceTextureListener = new SurfaceTextureListener() {
         @Override
         public void onSurfaceTextureSizeChanged(final SurfaceTexture surface, final int width, final int height) {
@@ -473,12 +1088,33 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
         @Override
         public void onSurfaceTextureAvailable(final SurfaceTexture surface, final int width, final int height) {
+            flightRecorder.record(FlightRecorder.EVENT_SURFACE_AVAILABLE, width, height);
             TextureVideoView.this.surface = new Surface(surface);
-            openVideo();
+            startupTiming.markSurfaceAvailable(System.nanoTime());
+            if (mediaPlayer != null && currentState != STATE_ERROR) {
+                // the video has been preparing without a surface, so just attach it now
+                attachSurface(mediaPlayer, TextureVideoView.this.surface);
+                updateSurfaceTextureSize();
+                if (targetState == STATE_PLAYING) {
+                    start();
+                }
+            } else {
+                openVideo();
+            }
         }
 
         @Override
         public boolean onSurfaceTextureDestroyed(final SurfaceTexture surface) {
+            if (surfaceRetentionEnabled && mediaPlayer != null && currentState != STATE_ERROR) {
+                flightRecorder.record(FlightRecorder.EVENT_SURFACE_DESTROYED, 1);
+                // keep texture and player alive, they are reattached in onAttachedToWindow()
+                retainedSurfaceTexture = surface;
+                if (mediaController != null) mediaController.hide();
+                SurfaceTextureRetainer.getInstance().retain(TextureVideoView.this);
+                return false;
+            }
+
+            flightRecorder.record(FlightRecorder.EVENT_SURFACE_DESTROYED, 0);
             // after we return from this we can't use the surface any more
             if (TextureVideoView.this.surface != null) {
                 TextureVideoView.this.surface.release();
@@ -491,24 +1127,224 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
         @Override
         public void onSurfaceTextureUpdated(final SurfaceTexture surface) {
+            framePacingMonitor.onFrame(surface.getTimestamp());
+            playbackMetrics.incrementCounter(PlaybackMetrics.COUNTER_FRAMES_RENDERED, 1);
+            final long droppedFrames = framePacingMonitor.getDroppedFrameCount();
+            if (droppedFrames > reportedDroppedFrames) {
+                playbackMetrics.incrementCounter(PlaybackMetrics.COUNTER_FRAMES_DROPPED,
+                        droppedFrames - reportedDroppedFrames);
+                reportedDroppedFrames = droppedFrames;
+            }
+            if (session != null && currentState == STATE_PLAYING) {
+                final long now = System.nanoTime();
+                if (now - lastPositionCheckNanos >= POSITION_CHECK_INTERVAL_NANOS) {
+                    lastPositionCheckNanos = now;
+                    session.updatePosition(mediaPlayer.getCurrentPosition());
+                }
+            }
+            if (!stallTracker.isRenderingStarted()) {
+                stallTracker.markRenderingStart(System.nanoTime());
+            }
+            if (startupTiming.isRunning() && startupTiming.markFirstFrame(System.nanoTime())) {
+                StartupStatistics.getInstance().record(startupTiming);
+                playbackMetrics.recordLatency(PlaybackMetrics.HISTOGRAM_TIME_TO_FIRST_FRAME,
+                        startupTiming.getTimeToFirstFrameNanos());
+                if (session != null) {
+                    session.setTimeToFirstFrameMillis((int) (startupTiming.getTimeToFirstFrameNanos() / 1000000));
+                }
+                if (startupTimingListener != null) {
+                    startupTimingListener.onStartupTiming(TextureVideoView.this, startupTiming);
+                }
+            }
+        }
+    };
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        attachedToWindow = true;
+        getContext().getApplicationContext().registerComponentCallbacks(trimMemoryCallbacks);
+        if (retainedSurfaceTexture != null) {
+            SurfaceTextureRetainer.getInstance().remove(this);
+            if (getSurfaceTexture() != retainedSurfaceTexture) {
+                // no onSurfaceTextureAvailable() callback follows, the player still renders into it
+                setSurfaceTexture(retainedSurfaceTexture);
+            }
+            retainedSurfaceTexture = null;
+        } else if (mediaPlayer == null && surface == null) {
+            // start preparing a video set while detached, before the surface is available
+            openVideo();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        attachedToWindow = false;
+        getContext().getApplicationContext().unregisterComponentCallbacks(trimMemoryCallbacks);
+        if (surface == null) {
+            // the player has been preparing without a surface, so no onSurfaceTextureDestroyed()
+            // follows; keep the target state, the video is reopened when attached again
+            release(false);
+        }
+    }
+
+    private final ComponentCallbacks2 trimMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (idleReleaseOnTrimMemory && level >= TRIM_MEMORY_RUNNING_LOW) {
+                releaseIdlePlayer();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            if (idleReleaseOnTrimMemory) {
+                releaseIdlePlayer();
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
             // do nothing
         }
     };
 
+    private final Runnable idleReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseIdlePlayer();
+        }
+    };
+
+    /**
+     * Sets the time after which the media player of a paused video is released to free its decoder
+     * and buffers. Position, duration and size of the video are kept and the last frame stays
+     * visible; {@link #start()} transparently reopens the video at the saved position.
+     *
+     * @param timeoutMillis the time in milliseconds, or {@code 0} to keep paused players (default).
+     */
+    public void setIdleReleaseTimeout(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative: " + timeoutMillis);
+        }
+        idleReleaseTimeout = timeoutMillis;
+        removeCallbacks(idleReleaseRunnable);
+        if (timeoutMillis > 0 && isInPlaybackState() && targetState == STATE_PAUSED) {
+            postDelayed(idleReleaseRunnable, timeoutMillis);
+        }
+    }
+
+    public long getIdleReleaseTimeout() {
+        return idleReleaseTimeout;
+    }
+
+    /**
+     * Enables or disables releasing the media player of a paused video when the system asks the
+     * application to trim its memory (see {@link ComponentCallbacks2#onTrimMemory(int)}).
+     *
+     * @param enabled {@code true} to release paused players on memory pressure.
+     * @see #setIdleReleaseTimeout(long)
+     */
+    public void setIdleReleaseOnTrimMemory(boolean enabled) {
+        idleReleaseOnTrimMemory = enabled;
+    }
+
+    public boolean isIdleReleaseOnTrimMemory() {
+        return idleReleaseOnTrimMemory;
+    }
+
     /*
-     * release the media player in any state
+     * release the media player of a paused video, start() reopens it at the same position
+     */
+    private void releaseIdlePlayer() {
+        if (!isInPlaybackState() || targetState == STATE_PLAYING || mediaPlayer.isPlaying()) return;
+
+        seekWhenPrepared = mediaPlayer.getCurrentPosition();
+        idleDuration = mediaPlayer.getDuration();
+        if (mediaController != null) mediaController.hide();
+        // keeps target state, video size and buffer percentage
+        release(false);
+        idleReleased = true;
+    }
+
+    /**
+     * Enables or disables keeping the {@link SurfaceTexture} and the prepared {@link MediaPlayer}
+     * while this view is detached from its window, e.g. when it is moved to another parent or
+     * detached by a RecyclerView. The view continues seamlessly when it is attached again instead of
+     * preparing the video again. Playback is not paused while detached.
+     * <p>
+     * The number of views retaining their texture at the same time is limited by the
+     * {@link SurfaceTextureRetainer}. Retention requires API level 16 and is ignored on older versions.
+     *
+     * @param enabled {@code true} to retain the texture and player while detached.
+     */
+    public void setSurfaceRetentionEnabled(boolean enabled) {
+        surfaceRetentionEnabled = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+        if (!enabled && retainedSurfaceTexture != null) {
+            SurfaceTextureRetainer.getInstance().remove(this);
+            releaseRetainedSurface();
+        }
+    }
+
+    public boolean isSurfaceRetentionEnabled() {
+        return surfaceRetentionEnabled;
+    }
+
+    /*
+     * release the texture and the media player retained while detached
+     */
+    void releaseRetainedSurface() {
+        if (retainedSurfaceTexture == null) return;
+
+        if (surface != null) {
+            surface.release();
+            surface = null;
+        }
+        release(true);
+        retainedSurfaceTexture.release();
+        retainedSurfaceTexture = null;
+    }
+
+    private void updateSurfaceTextureSize() {
+        final SurfaceTexture surfaceTexture = getSurfaceTexture();
+        if (surfaceTexture != null && videoWidth != 0 && videoHeight != 0) {
+            surfaceTexture.setDefaultBufferSize(videoWidth, videoHeight);
+        }
+    }
+
+    /*
+     * release the media player in any state, the player itself is released in the background
      */
     private void release(boolean cleartargetstate) {
-        if (mediaPlayer != null) {
-            mediaPlayer.reset();
-            mediaPlayer.release();
-            mediaPlayer = null;
-            currentState = STATE_IDLE;
+        release(cleartargetstate, true);
+    }
+
+    private void release(boolean cleartargetstate, boolean releaseDecoder) {
+        final long watchdogToken = MainThreadWatchdog.begin(MainThreadWatchdog.RELEASE);
+        try {
+            flightRecorder.record(FlightRecorder.EVENT_RELEASE, cleartargetstate ? 1 : 0);
+            setStallTrackerPlaying(false);
             if (cleartargetstate) {
-                targetState = STATE_IDLE;
+                endSession();
+                idleReleased = false;
+                idleDuration = 0;
             }
-            AudioManager am = (AudioManager) getContext().getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
-            am.abandonAudioFocus(null);
+            if (releaseDecoder) {
+                DecoderBudget.getInstance().release(this);
+            }
+            if (mediaPlayer != null) {
+                recyclePlayer(mediaPlayer, false, true, null);
+                mediaPlayer = null;
+                setCurrentState(STATE_IDLE);
+                if (cleartargetstate) {
+                    setTargetState(STATE_IDLE);
+                }
+                AudioManager am = (AudioManager) getContext().getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
+                am.abandonAudioFocus(null);
+            }
+        } finally {
+            MainThreadWatchdog.end(watchdogToken);
         }
     }
 
@@ -579,36 +1415,68 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
     @Override
     public void start() {
-        if (isInPlaybackState()) {
+        flightRecorder.record(FlightRecorder.EVENT_START);
+        recordSessionEvent(PlaybackSession.EVENT_START, 0);
+        removeCallbacks(idleReleaseRunnable);
+        if (idleReleased) {
+            // reopen the video released while paused, it starts once prepared
+            setTargetState(STATE_PLAYING);
+            openVideo();
+            return;
+        }
+
+        // without a surface playback is deferred until onSurfaceTextureAvailable()
+        if (isInPlaybackState() && surface != null) {
+            framePacingMonitor.markDiscontinuity();
+            final long start = MediaPlayerProfiler.begin();
             mediaPlayer.start();
-            currentState = STATE_PLAYING;
+            MediaPlayerProfiler.end(MediaPlayerProfiler.START, start);
+            setCurrentState(STATE_PLAYING);
+            setStallTrackerPlaying(true);
         }
-        targetState = STATE_PLAYING;
+        setTargetState(STATE_PLAYING);
     }
 
     @Override
     public void pause() {
+        flightRecorder.record(FlightRecorder.EVENT_PAUSE);
+        recordSessionEvent(PlaybackSession.EVENT_PAUSE, 0);
         if (isInPlaybackState()) {
             if (mediaPlayer.isPlaying()) {
+                final long start = MediaPlayerProfiler.begin();
                 mediaPlayer.pause();
-                currentState = STATE_PAUSED;
+                MediaPlayerProfiler.end(MediaPlayerProfiler.PAUSE, start);
+                setCurrentState(STATE_PAUSED);
+                framePacingMonitor.markDiscontinuity();
+                setStallTrackerPlaying(false);
+            }
+            if (idleReleaseTimeout > 0) {
+                removeCallbacks(idleReleaseRunnable);
+                postDelayed(idleReleaseRunnable, idleReleaseTimeout);
             }
         }
-        targetState = STATE_PAUSED;
+        setTargetState(STATE_PAUSED);
     }
 
     public void suspend() {
+        flightRecorder.record(FlightRecorder.EVENT_SUSPEND);
         release(false);
     }
 
     public void resume() {
+        flightRecorder.record(FlightRecorder.EVENT_RESUME);
         openVideo();
     }
 
     @Override
     public int getDuration() {
         if (isInPlaybackState()) {
-            return mediaPlayer.getDuration();
+            final long start = MediaPlayerProfiler.begin();
+            final int duration = mediaPlayer.getDuration();
+            MediaPlayerProfiler.end(MediaPlayerProfiler.GET_DURATION, start);
+            return duration;
+        } else if (idleReleased) {
+            return idleDuration;
         }
 
         return -1;
@@ -617,15 +1485,27 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
     @Override
     public int getCurrentPosition() {
         if (isInPlaybackState()) {
-            return mediaPlayer.getCurrentPosition();
+            final long start = MediaPlayerProfiler.begin();
+            final int position = mediaPlayer.getCurrentPosition();
+            MediaPlayerProfiler.end(MediaPlayerProfiler.GET_CURRENT_POSITION, start);
+            return position;
+        } else if (idleReleased) {
+            return seekWhenPrepared;
         }
         return 0;
     }
 
     @Override
     public void seekTo(int msec) {
+        flightRecorder.record(FlightRecorder.EVENT_SEEK_TO, msec);
+        recordSessionEvent(PlaybackSession.EVENT_SEEK, msec);
         if (isInPlaybackState()) {
+            framePacingMonitor.markDiscontinuity();
+            final long traceStart = PlaybackTrace.begin(PlaybackTrace.SEEK_TO);
+            final long start = MediaPlayerProfiler.begin();
             mediaPlayer.seekTo(msec);
+            MediaPlayerProfiler.end(MediaPlayerProfiler.SEEK_TO, start);
+            PlaybackTrace.end(PlaybackTrace.SEEK_TO, traceStart);
             seekWhenPrepared = 0;
         } else {
             seekWhenPrepared = msec;
@@ -634,12 +1514,17 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
     @Override
     public boolean isPlaying() {
-        return isInPlaybackState() && mediaPlayer.isPlaying();
+        if (!isInPlaybackState()) return false;
+
+        final long start = MediaPlayerProfiler.begin();
+        final boolean playing = mediaPlayer.isPlaying();
+        MediaPlayerProfiler.end(MediaPlayerProfiler.IS_PLAYING, start);
+        return playing;
     }
 
     @Override
     public int getBufferPercentage() {
-        if (mediaPlayer != null) {
+        if (mediaPlayer != null || idleReleased) {
             return currentBufferPercentage;
         }
         return 0;
@@ -669,9 +1554,14 @@ public class TextureVideoView extends TextureView implements MediaPlayerControl
 
     public int getAudioSessionId() {
         if (audioSession == 0) {
-            MediaPlayer foo = new MediaPlayer();
-            audioSession = foo.getAudioSessionId();
-            foo.release();
+            final long watchdogToken = MainThreadWatchdog.begin(MainThreadWatchdog.GET_AUDIO_SESSION_ID);
+            try {
+                MediaPlayer foo = MediaPlayerPool.getInstance().acquire();
+                audioSession = foo.getAudioSessionId();
+                MediaPlayerPool.getInstance().recycle(foo);
+            } finally {
+                MainThreadWatchdog.end(watchdogToken);
+            }
         }
         return audioSession;
     }
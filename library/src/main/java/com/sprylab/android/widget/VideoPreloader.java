@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.util.Log;
+
+import com.sprylab.android.widget.metrics.MediaPlayerProfiler;
+import com.sprylab.android.widget.metrics.PlaybackTrace;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepares videos ahead of time so that a {@link TextureVideoView} showing one of them later can
+ * adopt the already prepared {@link MediaPlayer} instead of preparing it from scratch.
+ * <p>
+ * The number of preloaded players is bounded by {@link #setMaxPreloads(int)}; when the limit is
+ * exceeded, the least recently preloaded video is dropped and its player is reset in the
+ * background by the {@link PlayerReleaser} and returned to the {@link MediaPlayerPool}.
+ * <p>
+ * All methods must be called from the main thread.
+ */
+public final class VideoPreloader {
+
+    private static final String TAG = VideoPreloader.class.getSimpleName();
+
+    private static final int DEFAULT_MAX_PRELOADS = 2;
+
+    private static final VideoPreloader INSTANCE = new VideoPreloader();
+
+    private final LinkedHashMap<Uri, PreloadedPlayer> preloads = new LinkedHashMap<>();
+
+    private int maxPreloads = DEFAULT_MAX_PRELOADS;
+
+    private VideoPreloader() {
+    }
+
+    /**
+     * @return the process-wide preloader instance.
+     */
+    public static VideoPreloader getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the maximum number of videos that are prepared ahead of time. Surplus preloads are
+     * dropped immediately, starting with the least recently preloaded one.
+     *
+     * @param maxPreloads the maximum number of preloaded videos.
+     */
+    public void setMaxPreloads(int maxPreloads) {
+        if (maxPreloads < 0) {
+            throw new IllegalArgumentException("maxPreloads must not be negative: " + maxPreloads);
+        }
+        this.maxPreloads = maxPreloads;
+        trimToSize();
+    }
+
+    public int getMaxPreloads() {
+        return maxPreloads;
+    }
+
+    /**
+     * Starts preparing the given video. Calling this method again for a video that is already
+     * being preloaded marks it as the most recently preloaded one.
+     *
+     * @param context the context used to resolve the URI.
+     * @param uri     the URI of the video.
+     * @param headers the headers for the URI request, may be {@code null}.
+     */
+    public void preload(Context context, Uri uri, Map<String, String> headers) {
+        if (uri == null || maxPreloads == 0) return;
+
+        PreloadedPlayer preloaded = preloads.remove(uri);
+        if (preloaded != null && sameHeaders(preloaded.headers, headers)) {
+            preloads.put(uri, preloaded);
+            return;
+        } else if (preloaded != null) {
+            drop(preloaded.mediaPlayer);
+        }
+
+        final MediaPlayer mediaPlayer = MediaPlayerPool.getInstance().acquire();
+        preloaded = new PreloadedPlayer(uri, headers, mediaPlayer);
+        try {
+            mediaPlayer.setOnPreparedListener(preloaded);
+            mediaPlayer.setOnErrorListener(preloaded);
+            long start = MediaPlayerProfiler.begin();
+            mediaPlayer.setDataSource(context.getApplicationContext(), uri, headers);
+            MediaPlayerProfiler.end(MediaPlayerProfiler.SET_DATA_SOURCE, start);
+            mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            PlaybackTrace.beginAsync(PlaybackTrace.PREPARE, System.identityHashCode(mediaPlayer));
+            start = MediaPlayerProfiler.begin();
+            mediaPlayer.prepareAsync();
+            MediaPlayerProfiler.end(MediaPlayerProfiler.PREPARE_ASYNC, start);
+        } catch (IOException | IllegalArgumentException | IllegalStateException ex) {
+            Log.w(TAG, "Unable to preload " + uri, ex);
+            drop(mediaPlayer);
+            return;
+        }
+        preloads.put(uri, preloaded);
+        trimToSize();
+    }
+
+    /**
+     * Drops the preload of the given video, if any.
+     *
+     * @param uri the URI of the video.
+     */
+    public void cancel(Uri uri) {
+        final PreloadedPlayer preloaded = preloads.remove(uri);
+        if (preloaded != null) {
+            drop(preloaded.mediaPlayer);
+        }
+    }
+
+    /**
+     * Drops all preloads.
+     */
+    public void clear() {
+        final Iterator<PreloadedPlayer> iterator = preloads.values().iterator();
+        while (iterator.hasNext()) {
+            drop(iterator.next().mediaPlayer);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Hands over the preloaded player for the given video. The caller takes ownership of the
+     * player and must replace its listeners.
+     *
+     * @return the preloaded player or {@code null} if the video has not been preloaded with the
+     * same headers.
+     */
+    PreloadedPlayer take(Uri uri, Map<String, String> headers) {
+        if (uri == null) return null;
+
+        final PreloadedPlayer preloaded = preloads.get(uri);
+        if (preloaded == null || !sameHeaders(preloaded.headers, headers)) {
+            return null;
+        }
+        preloads.remove(uri);
+        return preloaded;
+    }
+
+    private void trimToSize() {
+        final Iterator<PreloadedPlayer> iterator = preloads.values().iterator();
+        while (preloads.size() > maxPreloads && iterator.hasNext()) {
+            drop(iterator.next().mediaPlayer);
+            iterator.remove();
+        }
+    }
+
+    private static void drop(MediaPlayer mediaPlayer) {
+        // resetting a player blocks, so keep it off the main thread
+        PlayerReleaser.getInstance().releaseAsync(mediaPlayer, false, null);
+    }
+
+    private static boolean sameHeaders(Map<String, String> a, Map<String, String> b) {
+        if (a == null) a = Collections.emptyMap();
+        if (b == null) b = Collections.emptyMap();
+        return a.equals(b);
+    }
+
+    final class PreloadedPlayer implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener {
+
+        final Uri uri;
+        final Map<String, String> headers;
+        final MediaPlayer mediaPlayer;
+        boolean prepared;
+
+        PreloadedPlayer(Uri uri, Map<String, String> headers, MediaPlayer mediaPlayer) {
+            this.uri = uri;
+            this.headers = headers;
+            this.mediaPlayer = mediaPlayer;
+        }
+
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            // the PREPARE span is ended by the view adopting the player
+            prepared = true;
+        }
+
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.w(TAG, "Error " + what + "/" + extra + " while preloading " + uri);
+            if (preloads.get(uri) == this) {
+                cancel(uri);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A cached video: a sparse file holding the bytes downloaded so far at their offsets, plus the
+ * {@link RangeSet} of the regions that are valid.
+ * <p>
+ * Several connections may read and write the same entry. Reads use positional transfers on the
+ * shared {@link FileChannel} without locking; writes are serialized on the entry, so that a writer
+ * still holding data of a previous version (see {@link #reset(long, String)}) can't overwrite bytes
+ * a writer of the current version has already marked as valid.
+ * <p>
+ * The state of the entry is recorded in the {@link CacheJournal} whenever it is released by its
+ * last user.
+ */
+final class CacheEntry {
+
+    static final String FILE_SUFFIX = ".video";
+
+    final String key;
+    final File file;
+
+    private final RangeSet ranges = new RangeSet();
+    private long length = -1;
+    private String etag;
+    private int generation;
+    private boolean dirty;
+    private FileChannel channel;
+
+    // guarded by the cache
+    int useCount;
+    long lastAccess;
+
+    CacheEntry(String key, File directory) {
+        this.key = key;
+        file = new File(directory, key + FILE_SUFFIX);
+    }
+
+    /**
+     * @return the length of the video, or {@code -1} if not known yet.
+     */
+    synchronized long getLength() {
+        return length;
+    }
+
+    synchronized String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return the version of the content, incremented whenever the entry is {@link #reset(long, String) reset}.
+     */
+    synchronized int getGeneration() {
+        return generation;
+    }
+
+    synchronized boolean isComplete() {
+        return length >= 0 && ranges.contains(0, length);
+    }
+
+    synchronized long getCoveredBytes() {
+        return ranges.getCoveredBytes();
+    }
+
+    /**
+     * @see RangeSet#coveredUntil(long)
+     */
+    synchronized long coveredUntil(long position) {
+        return ranges.coveredUntil(position);
+    }
+
+    /**
+     * @see RangeSet#nextCovered(long)
+     */
+    synchronized long nextCovered(long position) {
+        return ranges.nextCovered(position);
+    }
+
+    synchronized FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * Writes downloaded data at its offset and marks it as valid.
+     *
+     * @param generation the {@link #getGeneration() generation} the data belongs to; data of a
+     *                   previous generation is dropped.
+     * @return the number of bytes that were not cached before.
+     */
+    synchronized long write(int generation, ByteBuffer data, long position) throws IOException {
+        if (generation != this.generation) {
+            data.position(data.limit());
+            return 0;
+        }
+        final FileChannel fileChannel = getChannel();
+        long end = position;
+        while (data.hasRemaining()) {
+            end += fileChannel.write(data, end);
+        }
+        if (length >= 0 && end > length) {
+            end = length;
+        }
+        final long added = ranges.add(position, end);
+        if (added > 0) {
+            dirty = true;
+        }
+        return added;
+    }
+
+    /**
+     * Drops all cached ranges, e.g. because the video has changed on the origin. The data stays in
+     * the file until it is {@link #truncate() truncated}.
+     *
+     * @return the number of bytes that were cached.
+     */
+    synchronized long reset(long length, String etag) {
+        final long removed = ranges.getCoveredBytes();
+        ranges.clear();
+        this.length = length;
+        this.etag = etag;
+        generation++;
+        dirty = true;
+        return removed;
+    }
+
+    /**
+     * Drops the data of the file, after a {@link #reset(long, String) reset} has been recorded.
+     */
+    synchronized void truncate() {
+        try {
+            if (channel != null) {
+                channel.truncate(0);
+            } else if (file.exists()) {
+                new FileOutputStream(file).close();
+            }
+        } catch (IOException ignored) {
+            // no ranges are valid anymore, so the content of the file doesn't matter
+        }
+    }
+
+    /**
+     * Sets the length and validator of a new entry.
+     */
+    synchronized void initialize(long length, String etag) {
+        this.length = length;
+        this.etag = etag;
+        dirty = true;
+    }
+
+    /**
+     * Restores the length and validator recorded in the journal.
+     */
+    synchronized void restore(long length, String etag) {
+        this.length = length;
+        this.etag = etag;
+    }
+
+    /**
+     * Restores a range recorded in the journal.
+     */
+    synchronized void restoreRange(long start, long end) {
+        ranges.add(start, end);
+    }
+
+    /**
+     * @return {@code true} if the entry has changed since it was last recorded in the journal.
+     */
+    synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Records the current state of the entry in the journal.
+     */
+    synchronized void writeTo(CacheJournal journal) throws IOException {
+        journal.put(key, length, etag, lastAccess, ranges);
+        dirty = false;
+    }
+
+    /**
+     * Closes the file.
+     */
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            final FileChannel fileChannel = channel;
+            channel = null;
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Deletes the file.
+     */
+    synchronized void delete() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing we can do about it
+            }
+            channel = null;
+        }
+        file.delete();
+    }
+}
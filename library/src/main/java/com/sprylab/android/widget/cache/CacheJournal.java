@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The index of a {@link VideoCache}: an append-only binary journal of the length, ETag, cached
+ * ranges and last access time of every {@link CacheEntry}.
+ * <p>
+ * Every change appends a record, framed by its length and a CRC32 of its content:
+ * <pre>
+ * journal = magic version record*
+ * record  = length crc type key (put | touch | remove)
+ * put     = videoLength lastAccess etag rangeCount (start end)*
+ * touch   = lastAccess
+ * </pre>
+ * Loading replays the journal in a single pass over the memory-mapped file. A record
+ * that was only partially written when the process was killed fails its length or checksum test;
+ * it and everything after it is discarded and overwritten by the next append. Ranges are only
+ * recorded after their bytes have been written to the video file, so a replayed entry never claims
+ * data that isn't there.
+ * <p>
+ * Once most records are obsolete, {@link #compact(Collection)} rewrites the journal with one record
+ * per entry into a temporary file, which atomically replaces the journal.
+ * <p>
+ * This class is not thread-safe; the {@link VideoCache} guards its instance.
+ */
+final class CacheJournal {
+
+    private static final int MAGIC = 0x5456434A; // "TVCJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    // length and crc
+    private static final int FRAME_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_TOUCH = 2;
+    private static final byte TYPE_REMOVE = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File file;
+    private final File tempFile;
+
+    private FileChannel channel;
+    private ByteBuffer record = ByteBuffer.allocate(256);
+    private final CRC32 crc = new CRC32();
+    private int recordCount;
+
+    CacheJournal(File file) {
+        this.file = file;
+        tempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * @return the number of records in the journal, including obsolete ones.
+     */
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Replays the journal and opens it for appending.
+     *
+     * @param directory the directory of the video files.
+     * @return the entries, least recently used first; {@code null} if there was no readable
+     * journal, in which case an empty one has been created.
+     */
+    List<CacheEntry> load(File directory) throws IOException {
+        tempFile.delete();
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        boolean success = false;
+        try {
+            final long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                reset();
+                success = true;
+                return null;
+            }
+
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                reset();
+                success = true;
+                return null;
+            }
+
+            final HashMap<String, CacheEntry> entries = new HashMap<>();
+            byte[] content = new byte[256];
+            int end = buffer.position();
+            while (buffer.remaining() >= FRAME_BYTES) {
+                final int length = buffer.getInt();
+                final int checksum = buffer.getInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES || length > buffer.remaining()) break;
+
+                if (content.length < length) {
+                    content = new byte[Math.max(length, content.length * 2)];
+                }
+                buffer.get(content, 0, length);
+                crc.reset();
+                crc.update(content, 0, length);
+                if ((int) crc.getValue() != checksum) break;
+
+                replay(ByteBuffer.wrap(content, 0, length), directory, entries);
+                end = buffer.position();
+                recordCount++;
+            }
+            // drop a torn record at the end, if any
+            if (end < size) {
+                channel.truncate(end);
+            }
+            channel.position(end);
+
+            final List<CacheEntry> sorted = new ArrayList<>(entries.values());
+            Collections.sort(sorted, new Comparator<CacheEntry>() {
+                @Override
+                public int compare(CacheEntry a, CacheEntry b) {
+                    final long diff = a.lastAccess - b.lastAccess;
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            success = true;
+            return sorted;
+        } finally {
+            if (!success) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Records the current state of an entry.
+     */
+    void put(String key, long length, String etag, long lastAccess, RangeSet ranges) throws IOException {
+        beginRecord(TYPE_PUT, key, 8 + 8 + 2 + (etag != null ? etag.length() * 3 : 0) + 4 + ranges.size() * 16);
+        writePut(length, etag, lastAccess, ranges);
+        endRecord();
+    }
+
+    void touch(String key, long lastAccess) throws IOException {
+        beginRecord(TYPE_TOUCH, key, 8);
+        record.putLong(lastAccess);
+        endRecord();
+    }
+
+    void remove(String key) throws IOException {
+        beginRecord(TYPE_REMOVE, key, 0);
+        endRecord();
+    }
+
+    /**
+     * Replaces the journal with one record per entry.
+     */
+    void compact(Collection<CacheEntry> entries) throws IOException {
+        final FileChannel compacted = new RandomAccessFile(tempFile, "rw").getChannel();
+        try {
+            compacted.truncate(0);
+            writeHeader(compacted);
+            final FileChannel appending = channel;
+            channel = compacted;
+            try {
+                for (CacheEntry entry : entries) {
+                    entry.writeTo(this);
+                }
+            } finally {
+                channel = appending;
+            }
+            // the rename must not become visible before the content
+            compacted.force(true);
+        } finally {
+            compacted.close();
+        }
+        close();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + file);
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.position(channel.size());
+        recordCount = entries.size();
+    }
+
+    void close() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // nothing we can do about it
+        }
+        channel = null;
+    }
+
+    private void reset() throws IOException {
+        channel.truncate(0);
+        writeHeader(channel);
+        recordCount = 0;
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private void replay(ByteBuffer content, File directory, HashMap<String, CacheEntry> entries) {
+        final byte type = content.get();
+        final int keyLength = content.getShort();
+        final String key = new String(content.array(), content.position(), keyLength, ASCII);
+        content.position(content.position() + keyLength);
+
+        if (type == TYPE_PUT) {
+            final CacheEntry entry = new CacheEntry(key, directory);
+            final long length = content.getLong();
+            entry.lastAccess = content.getLong();
+            final int etagLength = content.getShort();
+            String etag = null;
+            if (etagLength >= 0) {
+                etag = new String(content.array(), content.position(), etagLength, UTF_8);
+                content.position(content.position() + etagLength);
+            }
+            entry.restore(length, etag);
+            final int rangeCount = content.getInt();
+            for (int i = 0; i < rangeCount; i++) {
+                entry.restoreRange(content.getLong(), content.getLong());
+            }
+            entries.put(key, entry);
+        } else if (type == TYPE_TOUCH) {
+            final CacheEntry entry = entries.get(key);
+            if (entry != null) {
+                entry.lastAccess = content.getLong();
+            }
+        } else if (type == TYPE_REMOVE) {
+            entries.remove(key);
+        }
+    }
+
+    private void beginRecord(byte type, String key, int maxBodyBytes) {
+        final int maxBytes = FRAME_BYTES + 1 + 2 + key.length() + maxBodyBytes;
+        if (record.capacity() < maxBytes) {
+            record = ByteBuffer.allocate(Math.max(maxBytes, record.capacity() * 2));
+        }
+        record.clear();
+        record.position(FRAME_BYTES);
+        record.put(type);
+        record.putShort((short) key.length());
+        for (int i = 0; i < key.length(); i++) {
+            record.put((byte) key.charAt(i));
+        }
+    }
+
+    private void writePut(long length, String etag, long lastAccess, RangeSet ranges) {
+        record.putLong(length);
+        record.putLong(lastAccess);
+        final byte[] bytes = etag != null ? etag.getBytes(UTF_8) : null;
+        if (bytes != null && bytes.length <= Short.MAX_VALUE) {
+            record.putShort((short) bytes.length);
+            record.put(bytes);
+        } else {
+            record.putShort((short) -1);
+        }
+        record.putInt(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            record.putLong(ranges.getStart(i));
+            record.putLong(ranges.getEnd(i));
+        }
+    }
+
+    private void endRecord() throws IOException {
+        if (channel == null) throw new IOException("Journal is closed");
+
+        final int length = record.position() - FRAME_BYTES;
+        crc.reset();
+        crc.update(record.array(), FRAME_BYTES, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        // a single write, so a record is torn only if the process dies within the system call
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        recordCount++;
+    }
+}
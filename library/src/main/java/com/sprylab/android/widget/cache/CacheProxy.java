@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTP proxy on the loopback interface that caches progressive video downloads in a
+ * {@link VideoCache}.
+ * <p>
+ * {@link com.sprylab.android.widget.TextureVideoView} routes remote URIs through the proxy (see
+ * {@code TextureVideoView.setCacheProxy(CacheProxy)}): the player requests
+ * {@link #getProxyUrl(String)}, and the proxy serves the parts of the requested byte range that
+ * are cached from disk and fetches only the missing parts from the origin. Everything fetched is
+ * written to the cache while it is streamed to the player, so seeking back and replays don't hit
+ * the network.
+ * <p>
+ * All connections are multiplexed on a single event loop thread using a {@link Selector},
+ * non-blocking client and origin channels and a pool of direct buffers (see
+ * {@link ProxyConnection}), https origins included. A small helper thread pool resolves host names
+ * and runs the CPU-heavy steps of TLS handshakes. At most {@value #MAX_CONNECTIONS}
+ * connections are served at a time.
+ * <p>
+ * Adaptive streams (HLS, DASH, Smooth Streaming) are not routed through the proxy, as their
+ * manifests reference segments by relative URLs. Opening the server socket requires the
+ * {@code INTERNET} permission.
+ */
+public final class CacheProxy {
+
+    private static final String TAG = CacheProxy.class.getSimpleName();
+
+    private static final int MAX_CONNECTIONS = 64;
+    private static final int HELPER_THREADS = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final String[] UNCACHEABLE_EXTENSIONS = {".m3u8", ".mpd", ".ism", ".isml"};
+
+    private final VideoCache cache;
+
+    // accessed by the event loop only
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private int connectionCount;
+
+    private Selector selector;
+    // tasks for the event loop of the current selector
+    private ConcurrentLinkedQueue<Runnable> loopTasks;
+    private ServerSocketChannel serverChannel;
+    private ThreadPoolExecutor helperExecutor;
+
+    private long cacheHitCount;
+    private long cacheMissCount;
+    private long bytesServedFromCache;
+    private long bytesServedFromNetwork;
+    private long bytesTransferred;
+    private long bytesMapped;
+
+    /**
+     * @param cache the cache to serve from and write to.
+     */
+    public CacheProxy(VideoCache cache) {
+        this.cache = cache;
+    }
+
+    public VideoCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Starts listening on a free port of the loopback interface. Does nothing if already started.
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel != null) return;
+
+        final Selector loopSelector = Selector.open();
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            server.configureBlocking(false);
+            server.register(loopSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            server.close();
+            loopSelector.close();
+            throw ex;
+        }
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        selector = loopSelector;
+        serverChannel = server;
+        loopTasks = tasks;
+        // short tasks only, which queue up rather than being rejected
+        helperExecutor = new ThreadPoolExecutor(HELPER_THREADS, HELPER_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "TextureVideoView-CacheProxyHelper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        helperExecutor.allowCoreThreadTimeOut(true);
+        final Thread loopThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runLoop(loopSelector, server, tasks);
+            }
+        }, "TextureVideoView-CacheProxy");
+        loopThread.setDaemon(true);
+        loopThread.start();
+    }
+
+    /**
+     * Stops listening and closes all connections, releasing their cache entries. The connections
+     * are closed asynchronously by the event loop.
+     */
+    public synchronized void stop() {
+        if (serverChannel == null) return;
+
+        // the event loop notices that its selector is not current anymore and closes everything
+        final Selector loopSelector = selector;
+        serverChannel = null;
+        selector = null;
+        loopTasks = null;
+        loopSelector.wakeup();
+        helperExecutor.shutdown();
+        helperExecutor = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return serverChannel != null;
+    }
+
+    /**
+     * @return the port the proxy listens on, or {@code -1} if not running.
+     */
+    public synchronized int getPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Returns the URL the player should request instead of the given one.
+     *
+     * @param url the URL of the video.
+     * @return the URL of the video on the proxy, or {@code url} itself if the proxy is not running or
+     * the URL can't be cached.
+     */
+    public String getProxyUrl(String url) {
+        final int port = getPort();
+        if (port < 0 || !isCacheable(url)) return url;
+
+        try {
+            return "http://127.0.0.1:" + port + "/?url=" + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * @return {@code true} if the URL is an http(s) URL of a progressive download.
+     */
+    public static boolean isCacheable(String url) {
+        final String lower = url.toLowerCase(Locale.US);
+        if (!lower.startsWith("http://") && !lower.startsWith("https://")) return false;
+
+        int end = lower.length();
+        final int query = lower.indexOf('?');
+        if (query >= 0) end = query;
+        final int fragment = lower.indexOf('#');
+        if (fragment >= 0 && fragment < end) end = fragment;
+        final String path = lower.substring(0, end);
+        for (String extension : UNCACHEABLE_EXTENSIONS) {
+            if (path.endsWith(extension)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of requests served from the cache.
+     */
+    public synchronized long getCacheHitCount() {
+        return cacheHitCount;
+    }
+
+    /**
+     * @return the number of requests forwarded to the origin.
+     */
+    public synchronized long getCacheMissCount() {
+        return cacheMissCount;
+    }
+
+    public synchronized long getBytesServedFromCache() {
+        return bytesServedFromCache;
+    }
+
+    public synchronized long getBytesServedFromNetwork() {
+        return bytesServedFromNetwork;
+    }
+
+    /**
+     * @return the number of cached bytes sent with {@code transferTo()}, i.e. copied from the file
+     * into the socket by the kernel.
+     */
+    public synchronized long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * @return the number of cached bytes sent from memory-mapped windows of the file, where
+     * {@code transferTo()} failed.
+     */
+    public synchronized long getBytesMapped() {
+        return bytesMapped;
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public synchronized void resetStatistics() {
+        cacheHitCount = 0;
+        cacheMissCount = 0;
+        bytesServedFromCache = 0;
+        bytesServedFromNetwork = 0;
+        bytesTransferred = 0;
+        bytesMapped = 0;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    synchronized void onCacheHit() {
+        cacheHitCount++;
+    }
+
+    synchronized void onCacheMiss() {
+        cacheMissCount++;
+    }
+
+    synchronized void onBytesServedFromCache(long count) {
+        bytesServedFromCache += count;
+    }
+
+    synchronized void onBytesServedFromNetwork(long count) {
+        bytesServedFromNetwork += count;
+    }
+
+    synchronized void onBytesTransferred(long count) {
+        bytesTransferred += count;
+    }
+
+    synchronized void onBytesMapped(long count) {
+        bytesMapped += count;
+    }
+
+    void onConnectionClosed() {
+        connectionCount--;
+    }
+
+    private void runLoop(Selector loopSelector, ServerSocketChannel server, ConcurrentLinkedQueue<Runnable> tasks) {
+        try {
+            while (true) {
+                loopSelector.select();
+                synchronized (this) {
+                    if (selector != loopSelector) break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                final Iterator<SelectionKey> keys = loopSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.channel() == server) {
+                        accept(loopSelector, server);
+                    } else {
+                        ((ProxyConnection) key.attachment()).onReady(key);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Event loop failed.", ex);
+        } finally {
+            closeAll(loopSelector, server);
+        }
+    }
+
+    private void accept(Selector loopSelector, ServerSocketChannel server) throws IOException {
+        SocketChannel client;
+        while ((client = server.accept()) != null) {
+            if (connectionCount >= MAX_CONNECTIONS) {
+                Log.w(TAG, "Too many connections, dropping one.");
+                client.close();
+                continue;
+            }
+            connectionCount++;
+            try {
+                new ProxyConnection(this, loopSelector, client);
+            } catch (IOException ex) {
+                connectionCount--;
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Closes all connections, which releases their cache entries, then the server channel and the
+     * selector. Runs on the event loop thread as it ends.
+     */
+    private void closeAll(Selector loopSelector, ServerSocketChannel server) {
+        // closing a connection cancels its keys
+        for (SelectionKey key : new ArrayList<>(loopSelector.keys())) {
+            if (key.attachment() instanceof ProxyConnection) {
+                ((ProxyConnection) key.attachment()).close();
+            }
+        }
+        try {
+            server.close();
+        } catch (IOException ignored) {
+            // nothing we can do about it
+        }
+        try {
+            loopSelector.close();
+        } catch (IOException ignored) {
+            // nothing we can do about it
+        }
+    }
+
+    /**
+     * Runs a task on the event loop thread.
+     */
+    private void runOnLoop(Runnable task) {
+        final Selector loopSelector;
+        final ConcurrentLinkedQueue<Runnable> tasks;
+        synchronized (this) {
+            loopSelector = selector;
+            tasks = loopTasks;
+        }
+        if (loopSelector == null) return;
+
+        tasks.add(task);
+        loopSelector.wakeup();
+    }
+
+    /**
+     * Resolves the host of an origin on a helper thread and passes the address to
+     * {@link ProxyConnection#onResolved(InetSocketAddress)} on the event loop.
+     */
+    void resolve(final ProxyConnection connection, final String host, final int port) {
+        runOnHelper(connection, new Runnable() {
+            @Override
+            public void run() {
+                final InetSocketAddress address = new InetSocketAddress(host, port);
+                runOnLoop(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.onResolved(address.isUnresolved() ? null : address);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs the delegated tasks of a TLS handshake on a helper thread and continues the handshake
+     * with {@link ProxyConnection#onTasksDone()} on the event loop.
+     */
+    void runTasks(final ProxyConnection connection, final TlsChannel tls) {
+        runOnHelper(connection, new Runnable() {
+            @Override
+            public void run() {
+                Runnable task;
+                while ((task = tls.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                runOnLoop(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.onTasksDone();
+                    }
+                });
+            }
+        });
+    }
+
+    private void runOnHelper(final ProxyConnection connection, Runnable task) {
+        final ThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = helperExecutor;
+        }
+        try {
+            if (executor == null) throw new RejectedExecutionException();
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // the proxy has been stopped
+            connection.fail(503, "Service Unavailable");
+        }
+    }
+}
@@ -0,0 +1,822 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+/**
+ * One client connection of the {@link CacheProxy}, driven by its event loop.
+ * <p>
+ * The connection reads the request head and looks up the {@link CacheEntry} of the video. If the
+ * length of the video is known from an earlier request, the connection answers with its own head
+ * and assembles the requested range segment by segment: ranges covered by the cache are streamed
+ * from the sparse file, gaps are fetched from the origin with a {@code Range} request each and
+ * written into the cache on the way. Otherwise, the request is forwarded to the origin as is, and
+ * the response is cached at the offset it starts at. Origins are read through non-blocking
+ * {@link SocketChannel}s; https origins through a {@link TlsChannel} on top.
+ * <p>
+ * Cached ranges are sent with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which lets the kernel copy the file into the socket ({@code sendfile()}) without passing the bytes
+ * through the Java heap. If that fails, the file is mapped in windows of
+ * {@value #MAP_WINDOW_BYTES} bytes and the mapped buffers are written instead.
+ * <p>
+ * Origin data is moved through a single pooled direct buffer: the origin is only read once the
+ * client has received everything read before, so a slow client throttles the origin instead of
+ * buffering in memory.
+ * <p>
+ * Host names are resolved and the delegated tasks of the TLS handshake are run on the proxy's
+ * helper threads, everything else happens on the event loop.
+ * <p>
+ * All methods must be called on the event loop thread.
+ */
+final class ProxyConnection {
+
+    private static final String TAG = CacheProxy.class.getSimpleName();
+
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int STATE_READ_REQUEST = 0;
+    private static final int STATE_CONNECT = 1;
+    private static final int STATE_HANDSHAKE = 2;
+    private static final int STATE_SEND_REQUEST = 3;
+    private static final int STATE_READ_RESPONSE_HEAD = 4;
+    private static final int STATE_RELAY = 5;
+    private static final int STATE_SERVE_FILE = 6;
+    private static final int STATE_CLOSED = 7;
+
+    private static final int MAX_REDIRECTS = 5;
+
+    // bounds the time a single client occupies the event loop
+    private static final long MAX_TRANSFER_BYTES = 1024 * 1024;
+    private static final long MAP_WINDOW_BYTES = 1024 * 1024;
+
+    private final CacheProxy proxy;
+    private final Selector selector;
+    private final SocketChannel client;
+    private final SelectionKey clientKey;
+    private ByteBuffer buffer;
+    private int state = STATE_READ_REQUEST;
+
+    private ProxyRequest request;
+    private URL url;
+    private int redirectCount;
+
+    // the response head, sent to the client before the data in the buffer
+    private ByteBuffer head;
+    private final ByteBuffer[] clientBuffers = new ByteBuffer[2];
+
+    private SocketChannel upstreamSocket;
+    // the socket itself, or the TLS connection on top of it
+    private ByteChannel upstream;
+    private TlsChannel tls;
+    private SelectionKey upstreamKey;
+    private ByteBuffer upstreamRequest;
+    private boolean upstreamEof;
+
+    // the range requested from the origin, inclusive; -1 if open or none
+    private long fetchStart = -1;
+    private long fetchEnd = -1;
+
+    private CacheEntry entry;
+    private int generation;
+    // the offset of the origin data in the buffer within the video, -1 if not cached
+    private long cacheOffset = -1;
+
+    // assembling the response from the cache and the origin
+    private boolean splicing;
+    private long servePosition;
+    private long serveEnd;
+    private long segmentRemaining;
+
+    private FileChannel file;
+    private long filePosition;
+    private long fileRemaining;
+    private boolean transferFailed;
+    private MappedByteBuffer mapped;
+
+    ProxyConnection(CacheProxy proxy, Selector selector, SocketChannel client) throws IOException {
+        this.proxy = proxy;
+        this.selector = selector;
+        this.client = client;
+        client.configureBlocking(false);
+        clientKey = client.register(selector, SelectionKey.OP_READ, this);
+        buffer = proxy.getBufferPool().acquire();
+    }
+
+    /**
+     * Handles a ready key of the client or the origin.
+     */
+    void onReady(SelectionKey key) {
+        if (state == STATE_CLOSED) return;
+
+        try {
+            if (key == clientKey) {
+                if (state == STATE_READ_REQUEST && key.isReadable()) {
+                    readRequest();
+                } else if (key.isWritable()) {
+                    if (state == STATE_SERVE_FILE) {
+                        serveFile();
+                    } else if (state == STATE_RELAY) {
+                        relay();
+                    }
+                }
+            } else if (key.isConnectable()) {
+                finishConnect();
+            } else if (state == STATE_HANDSHAKE) {
+                handshake();
+            } else if (state == STATE_SEND_REQUEST && key.isWritable()) {
+                sendRequest();
+            } else if (key.isReadable()) {
+                if (state == STATE_READ_RESPONSE_HEAD) {
+                    readResponseHead();
+                } else if (state == STATE_RELAY) {
+                    readBody();
+                }
+            }
+        } catch (IOException ex) {
+            // mostly the player closing the connection to seek
+            close();
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "Unable to serve request.", ex);
+            close();
+        }
+    }
+
+    /**
+     * Connects to the origin once its address has been resolved.
+     *
+     * @param address the resolved address, {@code null} if the host is unknown.
+     */
+    void onResolved(InetSocketAddress address) {
+        if (state != STATE_CONNECT) return;
+
+        try {
+            if (address == null) {
+                respond(502, "Bad Gateway");
+                return;
+            }
+            final SocketChannel channel = SocketChannel.open();
+            upstreamSocket = channel;
+            upstream = channel;
+            channel.configureBlocking(false);
+            if (url.getProtocol().equals("https")) {
+                // the host name enables SNI
+                final SSLEngine engine = SSLContext.getDefault().createSSLEngine(url.getHost(), address.getPort());
+                engine.setUseClientMode(true);
+                tls = new TlsChannel(channel, engine);
+                upstream = tls;
+            }
+            upstreamRequest = ByteBuffer.wrap(buildUpstreamRequest().getBytes(ASCII));
+            final boolean connected;
+            try {
+                connected = channel.connect(address);
+            } catch (IOException ex) {
+                onConnectFailed(ex);
+                return;
+            }
+            if (connected) {
+                upstreamKey = channel.register(selector, 0, this);
+                onConnected();
+            } else {
+                upstreamKey = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            close();
+        }
+    }
+
+    /**
+     * Continues the TLS handshake once the delegated tasks have been run.
+     */
+    void onTasksDone() {
+        if (state != STATE_HANDSHAKE) return;
+
+        try {
+            handshake();
+        } catch (IOException ex) {
+            close();
+        }
+    }
+
+    /**
+     * Responds with an error, e.g. when the proxy was stopped before a helper task could run.
+     */
+    void fail(int code, String reason) {
+        if (state == STATE_CLOSED) return;
+        try {
+            respond(code, reason);
+        } catch (IOException ex) {
+            close();
+        }
+    }
+
+    boolean isClosed() {
+        return state == STATE_CLOSED;
+    }
+
+    /**
+     * Closes the connection and everything attached to it.
+     */
+    void close() {
+        if (state == STATE_CLOSED) return;
+        state = STATE_CLOSED;
+
+        closeQuietly(client);
+        closeUpstream();
+        // the file is shared by all users of the entry
+        file = null;
+        mapped = null;
+        if (entry != null) {
+            proxy.getCache().release(entry);
+            entry = null;
+        }
+        proxy.getBufferPool().release(buffer);
+        buffer = null;
+        proxy.onConnectionClosed();
+    }
+
+    private void readRequest() throws IOException {
+        if (client.read(buffer) < 0) {
+            close();
+            return;
+        }
+        final int headEnd = indexOfHeadEnd(buffer);
+        if (headEnd < 0) {
+            if (!buffer.hasRemaining()) {
+                respond(431, "Request Header Fields Too Large");
+            }
+            return;
+        }
+        final String requestHead = ascii(buffer, 0, headEnd);
+        buffer.clear();
+        clientKey.interestOps(0);
+        try {
+            request = ProxyRequest.parse(requestHead);
+            url = new URL(request.url);
+        } catch (IOException ex) {
+            respond(400, "Bad Request");
+            return;
+        }
+
+        entry = proxy.getCache().acquire(request.url);
+        final long length = entry != null ? entry.getLength() : -1;
+        if (length >= 0) {
+            serveFromCache(length);
+        } else {
+            proxy.onCacheMiss();
+            if (request.rangeRequested) {
+                fetchStart = request.rangeStart;
+                fetchEnd = request.rangeEnd;
+            }
+            fetch();
+        }
+    }
+
+    private void serveFromCache(long length) throws IOException {
+        generation = entry.getGeneration();
+        file = entry.getChannel();
+        if (request.rangeStart >= length && length > 0) {
+            head = ResponseHead.build(416, "Range Not Satisfiable", 0, null, "bytes */" + length);
+            servePosition = 0;
+            serveEnd = 0;
+        } else {
+            final long end = request.rangeEnd < 0 ? length - 1 : Math.min(request.rangeEnd, length - 1);
+            final long count = end - request.rangeStart + 1;
+            final String contentType = URLConnection.guessContentTypeFromName(url.getPath());
+            if (request.rangeRequested) {
+                head = ResponseHead.build(206, "Partial Content", count, contentType,
+                        "bytes " + request.rangeStart + "-" + end + "/" + length);
+            } else {
+                head = ResponseHead.build(200, "OK", count, contentType, null);
+            }
+            servePosition = request.rangeStart;
+            serveEnd = request.method.equals("HEAD") ? servePosition : end + 1;
+        }
+        if (entry.coveredUntil(servePosition) >= serveEnd) {
+            proxy.onCacheHit();
+        } else {
+            proxy.onCacheMiss();
+        }
+        splicing = true;
+        nextSegment();
+    }
+
+    /**
+     * Continues the response at {@link #servePosition}, either from the cache or from the origin.
+     */
+    private void nextSegment() throws IOException {
+        buffer.clear();
+        final long covered = Math.min(entry.coveredUntil(servePosition), serveEnd);
+        if (covered > servePosition || servePosition >= serveEnd) {
+            buffer.flip();
+            state = STATE_SERVE_FILE;
+            filePosition = servePosition;
+            fileRemaining = covered - servePosition;
+            mapped = null;
+            clientKey.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            final long gapEnd = Math.min(entry.nextCovered(servePosition), serveEnd);
+            fetchStart = servePosition;
+            fetchEnd = gapEnd - 1;
+            segmentRemaining = gapEnd - servePosition;
+            clientKey.interestOps(0);
+            fetch();
+        }
+    }
+
+    private void serveFile() throws IOException {
+        if (!writeToClient()) return;
+
+        if (fileRemaining > 0) {
+            final long sent = transferFailed ? writeMapped() : transfer();
+            filePosition += sent;
+            fileRemaining -= sent;
+            proxy.onBytesServedFromCache(sent);
+        }
+        if (fileRemaining == 0) {
+            servePosition = filePosition;
+            if (servePosition < serveEnd) {
+                nextSegment();
+            } else {
+                close();
+            }
+        }
+    }
+
+    private long transfer() throws IOException {
+        final long sent;
+        try {
+            sent = file.transferTo(filePosition, Math.min(fileRemaining, MAX_TRANSFER_BYTES), client);
+        } catch (IOException ex) {
+            // not every kernel and file system supports sendfile() to a socket; if the client is
+            // gone instead, writing the mapped file fails just the same
+            Log.w(TAG, "Unable to transfer cached file, mapping it instead.", ex);
+            transferFailed = true;
+            return writeMapped();
+        }
+        if (sent == 0 && filePosition >= file.size()) {
+            throw new IOException("Cached file truncated: " + request.url);
+        }
+        proxy.onBytesTransferred(sent);
+        return sent;
+    }
+
+    private long writeMapped() throws IOException {
+        if (mapped == null || !mapped.hasRemaining()) {
+            mapped = file.map(FileChannel.MapMode.READ_ONLY, filePosition,
+                    Math.min(fileRemaining, MAP_WINDOW_BYTES));
+        }
+        final int sent = client.write(mapped);
+        proxy.onBytesMapped(sent);
+        return sent;
+    }
+
+    private void fetch() throws IOException {
+        final String protocol = url.getProtocol();
+        if (protocol.equals("http") || protocol.equals("https")) {
+            state = STATE_CONNECT;
+            proxy.resolve(this, url.getHost(), url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+        } else {
+            respond(400, "Bad Request");
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        try {
+            upstreamSocket.finishConnect();
+        } catch (IOException ex) {
+            onConnectFailed(ex);
+            return;
+        }
+        onConnected();
+    }
+
+    /**
+     * Answers like for an unknown host or a failed handshake, rather than resetting the player's
+     * connection.
+     */
+    private void onConnectFailed(IOException ex) throws IOException {
+        Log.w(TAG, "Unable to connect to " + url.getHost() + ".", ex);
+        respond(502, "Bad Gateway");
+    }
+
+    private void onConnected() throws IOException {
+        if (tls != null) {
+            state = STATE_HANDSHAKE;
+            handshake();
+        } else {
+            state = STATE_SEND_REQUEST;
+            upstreamKey.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void handshake() throws IOException {
+        final int ops;
+        try {
+            ops = tls.handshake();
+        } catch (SSLException ex) {
+            Log.w(TAG, "TLS handshake with " + url.getHost() + " failed.", ex);
+            respond(502, "Bad Gateway");
+            return;
+        }
+        if (ops == TlsChannel.NEED_TASKS) {
+            upstreamKey.interestOps(0);
+            proxy.runTasks(this, tls);
+        } else if (ops != 0) {
+            upstreamKey.interestOps(ops);
+        } else if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(url.getHost(), tls.getSession())) {
+            Log.w(TAG, "Certificate doesn't match " + url.getHost());
+            respond(502, "Bad Gateway");
+        } else {
+            state = STATE_SEND_REQUEST;
+            upstreamKey.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void sendRequest() throws IOException {
+        upstream.write(upstreamRequest);
+        if (!upstreamRequest.hasRemaining() && (tls == null || tls.flush())) {
+            state = STATE_READ_RESPONSE_HEAD;
+            upstreamKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private String buildUpstreamRequest() {
+        final StringBuilder builder = new StringBuilder();
+        final String path = url.getFile();
+        builder.append(request.method.equals("HEAD") ? "HEAD " : "GET ")
+                .append(path.isEmpty() ? "/" : path)
+                // HTTP/1.0 keeps the origin from answering with a chunked body
+                .append(" HTTP/1.0\r\n");
+        builder.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            builder.append(':').append(url.getPort());
+        }
+        builder.append("\r\n");
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (fetchStart >= 0) {
+            builder.append("Range: bytes=").append(fetchStart).append('-');
+            if (fetchEnd >= 0) {
+                builder.append(fetchEnd);
+            }
+            builder.append("\r\n");
+        }
+        // cached bytes must be the bytes of the file
+        builder.append("Accept-Encoding: identity\r\n");
+        builder.append("Connection: close\r\n\r\n");
+        return builder.toString();
+    }
+
+    private void readResponseHead() throws IOException {
+        if (upstream.read(buffer) < 0) {
+            respond(502, "Bad Gateway");
+            return;
+        }
+        final int headEnd = indexOfHeadEnd(buffer);
+        if (headEnd < 0) {
+            if (!buffer.hasRemaining()) {
+                respond(502, "Bad Gateway");
+            } else if (tls != null && tls.hasBufferedData()) {
+                readResponseHead();
+            }
+            return;
+        }
+
+        final ResponseHead response = ResponseHead.parse(ascii(buffer, 0, headEnd));
+        if (response == null) {
+            respond(502, "Bad Gateway");
+            return;
+        }
+        final String location = response.headers.get("location");
+        if (response.code >= 300 && response.code < 400 && location != null && redirectCount < MAX_REDIRECTS) {
+            redirectCount++;
+            closeUpstream();
+            buffer.clear();
+            url = new URL(url, location);
+            fetch();
+            return;
+        }
+        if (response.code != 200 && response.code != 206) {
+            respond(response.code, response.reason);
+            return;
+        }
+
+        final long bodyStart = response.getBodyStart();
+        final long length = response.getVideoLength();
+        final String etag = response.headers.get("etag");
+        if (splicing) {
+            // the client has its head already and expects exactly the bytes of the gap
+            if (bodyStart != fetchStart || length < 0
+                    || proxy.getCache().validate(entry, length, etag) != generation) {
+                close();
+                return;
+            }
+            cacheOffset = bodyStart;
+        } else {
+            head = ResponseHead.build(response.code, response.reason, response.getContentLength(),
+                    response.headers.get("content-type"), response.headers.get("content-range"));
+            if (entry != null && bodyStart >= 0 && length >= 0 && !request.method.equals("HEAD")) {
+                generation = proxy.getCache().validate(entry, length, etag);
+                cacheOffset = bodyStart;
+            }
+        }
+
+        // the rest of the buffer is the beginning of the body
+        buffer.limit(buffer.position());
+        buffer.position(headEnd + 4);
+        if (splicing && buffer.remaining() > segmentRemaining) {
+            buffer.limit((int) (buffer.position() + segmentRemaining));
+        }
+        state = STATE_RELAY;
+        onBody();
+        relay();
+    }
+
+    private void readBody() throws IOException {
+        final int read = upstream.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+            upstreamEof = true;
+        } else if (read > 0) {
+            onBody();
+        }
+        relay();
+    }
+
+    private void onBody() {
+        final int count = buffer.remaining();
+        if (count == 0) return;
+
+        if (cacheOffset >= 0) {
+            try {
+                proxy.getCache().onWritten(entry, entry.write(generation, buffer.duplicate(), cacheOffset));
+                cacheOffset += count;
+            } catch (IOException ex) {
+                Log.w(TAG, "Unable to cache " + request.url, ex);
+                cacheOffset = -1;
+            }
+        }
+        if (splicing) {
+            segmentRemaining -= count;
+        }
+        proxy.onBytesServedFromNetwork(count);
+    }
+
+    /**
+     * Writes the pending data to the client and switches between reading the origin and writing to
+     * the client. The buffer is in read mode when called.
+     */
+    private void relay() throws IOException {
+        if (!writeToClient()) {
+            if (upstreamKey != null) upstreamKey.interestOps(0);
+            clientKey.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        if (splicing && segmentRemaining == 0) {
+            closeUpstream();
+            cacheOffset = -1;
+            servePosition = fetchEnd + 1;
+            if (servePosition < serveEnd) {
+                nextSegment();
+            } else {
+                close();
+            }
+            return;
+        }
+        if (upstreamEof) {
+            // a gap ending early leaves the client short of data, it has to retry
+            close();
+            return;
+        }
+        buffer.clear();
+        if (splicing && segmentRemaining < buffer.capacity()) {
+            buffer.limit((int) segmentRemaining);
+        }
+        clientKey.interestOps(0);
+        upstreamKey.interestOps(SelectionKey.OP_READ);
+        if (tls != null && tls.hasBufferedData()) {
+            // decrypted or complete records don't make the socket readable again
+            readBody();
+        }
+    }
+
+    /**
+     * Sends a response without body and closes the connection afterwards.
+     */
+    private void respond(int code, String reason) throws IOException {
+        if (splicing) {
+            // the client has received a head already
+            close();
+            return;
+        }
+        closeUpstream();
+        head = ResponseHead.build(code, reason, 0, null, null);
+        buffer.clear();
+        buffer.flip();
+        upstreamEof = true;
+        state = STATE_RELAY;
+        relay();
+    }
+
+    /**
+     * @return {@code true} if the head and the buffer have been written completely.
+     */
+    private boolean writeToClient() throws IOException {
+        if (head != null && head.hasRemaining()) {
+            clientBuffers[0] = head;
+            clientBuffers[1] = buffer;
+            client.write(clientBuffers);
+            clientBuffers[0] = null;
+            clientBuffers[1] = null;
+        } else if (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+        return (head == null || !head.hasRemaining()) && !buffer.hasRemaining();
+    }
+
+    private void closeUpstream() {
+        if (upstream == null) return;
+
+        // cancels the key as well
+        closeQuietly(upstreamSocket);
+        upstreamSocket = null;
+        upstream = null;
+        tls = null;
+        upstreamKey = null;
+        upstreamEof = false;
+    }
+
+    static int indexOfHeadEnd(ByteBuffer buffer) {
+        final int end = buffer.position();
+        for (int i = 3; i < end; i++) {
+            if (buffer.get(i) == '\n' && buffer.get(i - 1) == '\r' && buffer.get(i - 2) == '\n'
+                    && buffer.get(i - 3) == '\r') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    private static String ascii(ByteBuffer buffer, int start, int end) {
+        final byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, ASCII);
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // nothing we can do about it
+        }
+    }
+
+    /**
+     * A parsed or built HTTP response head.
+     */
+    static final class ResponseHead {
+
+        final int code;
+        final String reason;
+        // lower-case names
+        final Map<String, String> headers;
+
+        private ResponseHead(int code, String reason, Map<String, String> headers) {
+            this.code = code;
+            this.reason = reason;
+            this.headers = headers;
+        }
+
+        /**
+         * @return the offset of the body within the video, or {@code -1} if unknown.
+         */
+        long getBodyStart() {
+            if (code == 200) return 0;
+
+            final long[] range = parseContentRange(headers.get("content-range"));
+            return range != null ? range[0] : -1;
+        }
+
+        /**
+         * @return the length of the whole video, or {@code -1} if unknown.
+         */
+        long getVideoLength() {
+            if (code == 200) return getContentLength();
+
+            final long[] range = parseContentRange(headers.get("content-range"));
+            return range != null ? range[1] : -1;
+        }
+
+        /**
+         * Parses {@code bytes <start>-<end>/<length>}.
+         *
+         * @return the start and the length, which is {@code -1} if unknown; {@code null} if the
+         * value can't be parsed.
+         */
+        private static long[] parseContentRange(String value) {
+            if (value == null || !value.startsWith("bytes ")) return null;
+
+            final int dash = value.indexOf('-');
+            final int slash = value.indexOf('/');
+            if (dash < 0 || slash < dash) return null;
+            try {
+                final long start = Long.parseLong(value.substring(6, dash).trim());
+                final String length = value.substring(slash + 1).trim();
+                return new long[]{start, length.equals("*") ? -1 : Long.parseLong(length)};
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        long getContentLength() {
+            final String value = headers.get("content-length");
+            if (value == null) return -1;
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        static ResponseHead parse(String head) {
+            final String[] lines = head.split("\r\n");
+            final String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) return null;
+
+            final int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            final Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+            return new ResponseHead(code, status.length > 2 ? status[2] : "", headers);
+        }
+
+        static ByteBuffer build(int code, String reason, long contentLength, String contentType,
+                                String contentRange) {
+            final StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(code).append(' ').append(reason != null ? reason : "")
+                    .append("\r\n");
+            if (contentLength >= 0) {
+                head.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+            if (contentType != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            if (contentRange != null) {
+                head.append("Content-Range: ").append(contentRange).append("\r\n");
+            }
+            head.append("Accept-Ranges: bytes\r\n");
+            head.append("Connection: close\r\n\r\n");
+            return ByteBuffer.wrap(head.toString().getBytes(ASCII));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A request to the {@link CacheProxy}: the origin URL, the requested byte range and the headers to
+ * forward to the origin.
+ */
+final class ProxyRequest {
+
+    // not forwarded to the origin
+    private static final String[] HOP_HEADERS = {
+            "host", "connection", "keep-alive", "proxy-connection", "range", "transfer-encoding", "te", "upgrade"
+    };
+
+    final String method;
+    final String url;
+    /** The first requested byte. */
+    final long rangeStart;
+    /** The last requested byte (inclusive), or {@code -1} for the end of the file. */
+    final long rangeEnd;
+    final boolean rangeRequested;
+    final Map<String, String> headers;
+
+    ProxyRequest(String method, String url, long rangeStart, long rangeEnd, boolean rangeRequested,
+                 Map<String, String> headers) {
+        this.method = method;
+        this.url = url;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        this.rangeRequested = rangeRequested;
+        this.headers = headers;
+    }
+
+    /**
+     * Parses a request head.
+     *
+     * @param head the request line and the header lines, without the terminating empty line.
+     * @throws IOException if the request is malformed.
+     */
+    static ProxyRequest parse(String head) throws IOException {
+        final String[] lines = head.split("\r?\n");
+        final Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        return parse(lines.length > 0 && !lines[0].isEmpty() ? lines[0] : null, headers);
+    }
+
+    static ProxyRequest parse(String requestLine, Map<String, String> rawHeaders) throws IOException {
+        if (requestLine == null) {
+            throw new IOException("Missing request line");
+        }
+        final String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Malformed request line: " + requestLine);
+        }
+        final String url = queryParameter(parts[1], "url");
+        if (url == null) {
+            throw new IOException("Missing url parameter: " + requestLine);
+        }
+
+        long rangeStart = 0;
+        long rangeEnd = -1;
+        boolean rangeRequested = false;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, String> header : rawHeaders.entrySet()) {
+            final String name = header.getKey().toLowerCase(Locale.US);
+            if (name.equals("range")) {
+                final long[] range = parseRange(header.getValue());
+                if (range != null) {
+                    rangeStart = range[0];
+                    rangeEnd = range[1];
+                    rangeRequested = true;
+                }
+            } else if (!isHopHeader(name)) {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        return new ProxyRequest(parts[0], url, rangeStart, rangeEnd, rangeRequested, headers);
+    }
+
+    /**
+     * Parses a single {@code bytes=start-[end]} range. Suffix ranges and multiple ranges aren't
+     * supported and yield {@code null}, i.e. the whole file.
+     */
+    static long[] parseRange(String value) {
+        final String spec = value.trim();
+        if (!spec.startsWith("bytes=") || spec.indexOf(',') >= 0) return null;
+
+        final int dash = spec.indexOf('-');
+        if (dash <= "bytes=".length()) return null;
+        try {
+            final long start = Long.parseLong(spec.substring("bytes=".length(), dash).trim());
+            final String endSpec = spec.substring(dash + 1).trim();
+            final long end = endSpec.isEmpty() ? -1 : Long.parseLong(endSpec);
+            if (start < 0 || (end >= 0 && end < start)) return null;
+            return new long[]{start, end};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isHopHeader(String name) {
+        for (String hopHeader : HOP_HEADERS) {
+            if (hopHeader.equals(name)) return true;
+        }
+        return false;
+    }
+
+    private static String queryParameter(String target, String name) throws UnsupportedEncodingException {
+        final int query = target.indexOf('?');
+        if (query < 0) return null;
+
+        for (String parameter : target.substring(query + 1).split("&")) {
+            final int equals = parameter.indexOf('=');
+            if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+                return URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import java.util.Arrays;
+
+/**
+ * A set of disjoint byte ranges, kept sorted and merged: adding a range that overlaps or touches
+ * existing ones replaces them with a single range. Ranges are half-open, {@code [start, end)}.
+ * <p>
+ * This class is not thread-safe; {@link CacheEntry} guards its instance.
+ */
+final class RangeSet {
+
+    // start and end of range i at 2 * i and 2 * i + 1
+    private long[] bounds = new long[8];
+    private int count;
+    private long coveredBytes;
+
+    /**
+     * Adds the range {@code [start, end)}.
+     *
+     * @return the number of bytes that were not covered before.
+     */
+    long add(long start, long end) {
+        if (start >= end) return 0;
+
+        // first range ending at or after start, i.e. the first one touching the new range
+        int first = 0;
+        while (first < count && bounds[2 * first + 1] < start) {
+            first++;
+        }
+        // first range starting after end, i.e. the first one not touching the new range
+        int last = first;
+        while (last < count && bounds[2 * last] <= end) {
+            last++;
+        }
+
+        long mergedStart = start;
+        long mergedEnd = end;
+        long previouslyCovered = 0;
+        for (int i = first; i < last; i++) {
+            mergedStart = Math.min(mergedStart, bounds[2 * i]);
+            mergedEnd = Math.max(mergedEnd, bounds[2 * i + 1]);
+            previouslyCovered += bounds[2 * i + 1] - bounds[2 * i];
+        }
+
+        final int removed = last - first;
+        if (removed == 0) {
+            if (2 * (count + 1) > bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            System.arraycopy(bounds, 2 * first, bounds, 2 * first + 2, 2 * (count - first));
+            count++;
+        } else if (removed > 1) {
+            System.arraycopy(bounds, 2 * last, bounds, 2 * first + 2, 2 * (count - last));
+            count -= removed - 1;
+        }
+        bounds[2 * first] = mergedStart;
+        bounds[2 * first + 1] = mergedEnd;
+
+        final long added = mergedEnd - mergedStart - previouslyCovered;
+        coveredBytes += added;
+        return added;
+    }
+
+    /**
+     * @return the end of the range containing {@code position}, or {@code position} itself if it is
+     * not covered.
+     */
+    long coveredUntil(long position) {
+        final int index = indexOf(position);
+        return index >= 0 ? bounds[2 * index + 1] : position;
+    }
+
+    /**
+     * @return the start of the first range after {@code position}, or {@link Long#MAX_VALUE} if
+     * there is none.
+     */
+    long nextCovered(long position) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (bounds[2 * mid] > position) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low < count ? bounds[2 * low] : Long.MAX_VALUE;
+    }
+
+    boolean contains(long start, long end) {
+        return start >= end || coveredUntil(start) >= end;
+    }
+
+    long getCoveredBytes() {
+        return coveredBytes;
+    }
+
+    int size() {
+        return count;
+    }
+
+    long getStart(int index) {
+        return bounds[2 * index];
+    }
+
+    long getEnd(int index) {
+        return bounds[2 * index + 1];
+    }
+
+    void clear() {
+        count = 0;
+        coveredBytes = 0;
+    }
+
+    private int indexOf(long position) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (bounds[2 * mid + 1] <= position) {
+                low = mid + 1;
+            } else if (bounds[2 * mid] > position) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(bounds[2 * i]).append('-').append(bounds[2 * i + 1]);
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A TLS client connection on top of a non-blocking {@link SocketChannel}, driven by an
+ * {@link SSLEngine}, so that https origins can be read on the {@link CacheProxy}'s event loop.
+ * <p>
+ * The caller registers the socket with its selector and calls {@link #handshake()} whenever the
+ * socket is ready until the handshake is complete; the delegated tasks of the engine (e.g.
+ * certificate validation) may be run on another thread in the meantime. Afterwards,
+ * {@link #read(ByteBuffer)} and {@link #write(ByteBuffer)} behave like their counterparts of a
+ * non-blocking socket. Records that have been received completely but not decrypted yet don't
+ * make the socket readable again, see {@link #hasBufferedData()}.
+ * <p>
+ * All buffers are direct, so data is only copied between native memory and the socket.
+ */
+final class TlsChannel implements ByteChannel {
+
+    /**
+     * Returned by {@link #handshake()} if delegated tasks must be run before it can continue.
+     */
+    static final int NEED_TASKS = -1;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // type, version and length
+    private static final int RECORD_HEADER_BYTES = 5;
+
+    private final SocketChannel socket;
+    private final SSLEngine engine;
+
+    // all in read mode: the pending bytes are between position and limit
+    private ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    private final ByteBuffer appIn;
+
+    TlsChannel(SocketChannel socket, SSLEngine engine) throws SSLException {
+        this.socket = socket;
+        this.engine = engine;
+        final SSLSession session = engine.getSession();
+        netIn = emptyBuffer(session.getPacketBufferSize());
+        netOut = emptyBuffer(session.getPacketBufferSize());
+        appIn = emptyBuffer(session.getApplicationBufferSize());
+        engine.beginHandshake();
+    }
+
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    /**
+     * Continues the handshake.
+     *
+     * @return {@code 0} if the handshake is complete, {@link #NEED_TASKS} if the
+     * {@link SSLEngine#getDelegatedTask() delegated tasks} must be run, or the
+     * {@link SelectionKey#interestOps() interest ops} to wait for otherwise.
+     */
+    int handshake() throws IOException {
+        while (true) {
+            if (!flush()) return SelectionKey.OP_WRITE;
+
+            final SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                    || status == SSLEngineResult.HandshakeStatus.FINISHED) {
+                return 0;
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                return NEED_TASKS;
+            }
+
+            final SSLEngineResult result = status == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                    ? wrap(EMPTY) : unwrap(appIn);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS connection closed during handshake");
+            } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                final int read = fill();
+                if (read < 0) throw new EOFException("Connection closed during TLS handshake");
+                if (read == 0) return SelectionKey.OP_READ;
+            }
+        }
+    }
+
+    Runnable getDelegatedTask() {
+        return engine.getDelegatedTask();
+    }
+
+    /**
+     * Decrypts as many records as fit into {@code dst}.
+     *
+     * @return the number of bytes read, or {@code -1} at the end of the stream.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int count = 0;
+        while (true) {
+            if (appIn.hasRemaining()) {
+                final int length = Math.min(appIn.remaining(), dst.remaining());
+                final int limit = appIn.limit();
+                appIn.limit(appIn.position() + length);
+                dst.put(appIn);
+                appIn.limit(limit);
+                count += length;
+            }
+            if (!dst.hasRemaining() || appIn.hasRemaining()) return count;
+
+            // decrypt straight into the destination if a whole record fits
+            final boolean direct = dst.remaining() >= appIn.capacity();
+            final SSLEngineResult result = unwrap(direct ? dst : appIn);
+            switch (result.getStatus()) {
+                case OK:
+                    if (direct) {
+                        count += result.bytesProduced();
+                    }
+                    runPostHandshake(result);
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (count > 0) return count;
+                    final int read = fill();
+                    if (read <= 0) return read;
+                    break;
+                case CLOSED:
+                    return count > 0 ? count : -1;
+                default:
+                    throw new SSLException("Unexpected TLS status " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Encrypts the data of {@code src} if the previously encrypted data has been sent.
+     *
+     * @return the number of bytes consumed from {@code src}.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!flush()) return 0;
+
+        final SSLEngineResult result = wrap(src);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new EOFException("TLS connection closed");
+        }
+        flush();
+        return result.bytesConsumed();
+    }
+
+    /**
+     * Sends encrypted data that could not be written before.
+     *
+     * @return {@code true} if everything has been sent.
+     */
+    boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (socket.write(netOut) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if {@link #read(ByteBuffer)} would return data without the socket
+     * becoming readable.
+     */
+    boolean hasBufferedData() {
+        if (appIn.hasRemaining()) return true;
+        if (netIn.remaining() < RECORD_HEADER_BYTES) return false;
+
+        final int position = netIn.position();
+        final int length = (netIn.get(position + 3) & 0xff) << 8 | (netIn.get(position + 4) & 0xff);
+        return netIn.remaining() >= RECORD_HEADER_BYTES + length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+    /**
+     * Closes the socket without a close_notify alert; the responses are delimited by their length.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        netOut.clear();
+        final SSLEngineResult result = engine.wrap(src, netOut);
+        netOut.flip();
+        return result;
+    }
+
+    private SSLEngineResult unwrap(ByteBuffer dst) throws IOException {
+        if (dst != appIn) {
+            return engine.unwrap(netIn, dst);
+        }
+        appIn.compact();
+        try {
+            return engine.unwrap(netIn, appIn);
+        } finally {
+            appIn.flip();
+        }
+    }
+
+    /**
+     * Reads from the socket into {@link #netIn}.
+     *
+     * @return the number of bytes read, or {@code -1} at the end of the stream.
+     */
+    private int fill() throws IOException {
+        netIn.compact();
+        if (!netIn.hasRemaining()) {
+            // a record larger than announced by the session
+            final ByteBuffer larger = ByteBuffer.allocateDirect(netIn.capacity() * 2);
+            netIn.flip();
+            larger.put(netIn);
+            netIn = larger;
+        }
+        try {
+            return socket.read(netIn);
+        } finally {
+            netIn.flip();
+        }
+    }
+
+    /**
+     * Handles messages after the handshake, like session tickets or key updates.
+     */
+    private void runPostHandshake(SSLEngineResult result) throws IOException {
+        SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+        while (true) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY);
+                flush();
+            } else {
+                return;
+            }
+            status = engine.getHandshakeStatus();
+        }
+    }
+
+    private static ByteBuffer emptyBuffer(int capacity) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A size-bounded disk cache of videos, keyed by their URL.
+ * <p>
+ * Players seek, so videos are rarely downloaded in order. Each video is stored as a sparse file
+ * holding the bytes downloaded so far at their offsets, together with the merged set of byte
+ * ranges that are valid; the {@link CacheProxy} serves the covered ranges from disk and only
+ * fetches the gaps from the origin. If the length or ETag reported by the origin changes, the
+ * cached data of the video is dropped.
+ * <p>
+ * When the total number of cached bytes exceeds the {@link #VideoCache(File, long) maximum size},
+ * the least recently used videos are deleted, skipping videos that are currently being served.
+ * <p>
+ * The index of the cache (the length, ETag, cached ranges and last access time of every video) is
+ * kept in an append-only {@link CacheJournal}, which is loaded lazily on first use and compacted
+ * once most of its records are obsolete. The journal survives the process being killed at any
+ * point; at worst, the most recently downloaded ranges of a video are downloaded again.
+ * <p>
+ * This class is thread-safe, but must not be used from the main thread as it accesses the disk.
+ */
+public final class VideoCache {
+
+    private static final String TAG = VideoCache.class.getSimpleName();
+
+    private static final String JOURNAL_NAME = "journal";
+
+    // compact once the journal has this many records and more than twice as many as entries
+    private static final int MIN_COMPACTION_RECORDS = 1000;
+
+    private final File directory;
+    private final long maxBytes;
+
+    // access-ordered, least recently used first
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private CacheJournal journal;
+    private long size;
+    private boolean initialized;
+
+    /**
+     * @param directory the directory of the cache, created if necessary; should not be used for
+     *                  anything else.
+     * @param maxBytes  the maximum total number of cached bytes.
+     */
+    public VideoCache(File directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the total number of cached bytes. Files of partially cached videos are sparse, so
+     * this is roughly the disk space used.
+     */
+    public synchronized long getSize() {
+        initialize();
+        return size;
+    }
+
+    /**
+     * Returns the cached file of the given URL if the video has been downloaded completely, and
+     * marks it as recently used.
+     *
+     * @param url the URL of the video.
+     * @return the complete file or {@code null} if the video is not cached completely.
+     */
+    public synchronized File get(String url) {
+        initialize();
+        final CacheEntry entry = entries.get(keyOf(url));
+        if (entry == null || !entry.isComplete()) return null;
+
+        touch(entry);
+        return entry.file;
+    }
+
+    /**
+     * Removes all cached videos that are not being served at the moment.
+     */
+    public synchronized void clear() {
+        initialize();
+        for (Iterator<CacheEntry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            final CacheEntry entry = iterator.next();
+            if (entry.useCount > 0) continue;
+            delete(entry);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns the entry of the given URL, creating it if necessary, and marks it as recently used.
+     * Every call must be paired with {@link #release(CacheEntry)}.
+     *
+     * @return the entry or {@code null} if the cache directory is not usable.
+     */
+    synchronized CacheEntry acquire(String url) {
+        initialize();
+        if (journal == null) return null;
+
+        final String key = keyOf(url);
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            entry = new CacheEntry(key, directory);
+            entries.put(key, entry);
+        } else if (entry.useCount == 0 && entry.getCoveredBytes() > 0 && !entry.file.exists()) {
+            // deleted behind our back
+            size -= entry.reset(-1, null);
+        }
+        entry.useCount++;
+        touch(entry);
+        return entry;
+    }
+
+    /**
+     * Releases an entry returned by {@link #acquire(String)}. The file of the entry is closed and
+     * its ranges are persisted once it is not used anymore.
+     */
+    synchronized void release(CacheEntry entry) {
+        if (--entry.useCount > 0) return;
+
+        try {
+            entry.close();
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to close " + entry.file, ex);
+        }
+        if (entry.isDirty()) {
+            try {
+                entry.writeTo(journal);
+            } catch (IOException ex) {
+                Log.w(TAG, "Unable to write journal.", ex);
+            }
+        }
+        // entries in use are never evicted, so this one may be overdue
+        trimToSize();
+        compactIfNeeded();
+    }
+
+    /**
+     * Checks the length and ETag reported by the origin against the cached data, dropping the data
+     * if the video has changed.
+     *
+     * @param length the length of the video, must not be negative.
+     * @param etag   the ETag of the video, may be {@code null}.
+     * @return the {@link CacheEntry#getGeneration() generation} of the entry's data.
+     */
+    synchronized int validate(CacheEntry entry, long length, String etag) {
+        final long cachedLength = entry.getLength();
+        final String cachedEtag = entry.getEtag();
+        if (cachedLength < 0) {
+            entry.initialize(length, etag);
+        } else if (cachedLength != length || etag != null && cachedEtag != null && !etag.equals(cachedEtag)) {
+            size -= entry.reset(length, etag);
+            // the recorded ranges refer to the old content, and must not survive a crash after the
+            // file has been truncated
+            try {
+                entry.writeTo(journal);
+            } catch (IOException ex) {
+                Log.w(TAG, "Unable to write journal.", ex);
+            }
+            entry.truncate();
+        }
+        return entry.getGeneration();
+    }
+
+    /**
+     * Accounts for data written to an entry and evicts old videos if necessary.
+     *
+     * @param added the number of newly cached bytes returned by
+     *              {@link CacheEntry#write(int, java.nio.ByteBuffer, long)}.
+     */
+    synchronized void onWritten(CacheEntry entry, long added) {
+        if (added == 0) return;
+
+        size += added;
+        trimToSize();
+    }
+
+    private void touch(CacheEntry entry) {
+        entry.lastAccess = System.currentTimeMillis();
+        if (journal == null) return;
+
+        try {
+            journal.touch(entry.key, entry.lastAccess);
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to write journal.", ex);
+        }
+    }
+
+    private void delete(CacheEntry entry) {
+        size -= entry.getCoveredBytes();
+        // an orphaned file is deleted by the next compaction, an entry without file would be wrong
+        if (journal != null) {
+            try {
+                journal.remove(entry.key);
+            } catch (IOException ex) {
+                Log.w(TAG, "Unable to write journal.", ex);
+            }
+        }
+        entry.delete();
+    }
+
+    private void trimToSize() {
+        final Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            final CacheEntry entry = iterator.next();
+            if (entry.useCount > 0) continue;
+            delete(entry);
+            iterator.remove();
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (journal == null) return;
+
+        final int recordCount = journal.getRecordCount();
+        if (recordCount < MIN_COMPACTION_RECORDS || recordCount <= 2 * entries.size()) return;
+
+        try {
+            journal.compact(entries.values());
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to compact journal.", ex);
+            return;
+        }
+        deleteOrphans();
+    }
+
+    /**
+     * Deletes files that are not in the index, e.g. because the process was killed before the
+     * first record of a video was written.
+     */
+    private void deleteOrphans() {
+        final File[] files = directory.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(CacheEntry.FILE_SUFFIX)
+                    && !entries.containsKey(name.substring(0, name.length() - CacheEntry.FILE_SUFFIX.length()))) {
+                file.delete();
+            }
+        }
+    }
+
+    private void initialize() {
+        if (initialized) return;
+        initialized = true;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+            return;
+        }
+        final CacheJournal loaded = new CacheJournal(new File(directory, JOURNAL_NAME));
+        final List<CacheEntry> restored;
+        try {
+            restored = loaded.load(directory);
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to load journal.", ex);
+            return;
+        }
+        journal = loaded;
+        if (restored == null) {
+            // a new or unreadable journal
+            deleteOrphans();
+            return;
+        }
+        for (CacheEntry entry : restored) {
+            entries.put(entry.key, entry);
+            size += entry.getCoveredBytes();
+        }
+        trimToSize();
+        compactIfNeeded();
+    }
+
+    static String keyOf(String url) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            final StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A monotonically increasing counter.
+ * <p>
+ * The count is striped over several padded slots of an {@link AtomicLongArray}, so threads
+ * incrementing the same counter rarely contend. Reading the count sums up all slots.
+ */
+public final class Counter {
+
+    private final AtomicLongArray slots;
+    private final int stripeMask;
+
+    public Counter() {
+        final int count = Stripes.defaultStripeCount();
+        slots = new AtomicLongArray(count * Stripes.PADDING);
+        stripeMask = count - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        slots.addAndGet(Stripes.index(stripeMask) * Stripes.PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < slots.length(); i += Stripes.PADDING) {
+            sum += slots.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Resets the count to zero. Increments happening concurrently may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < slots.length(); i += Stripes.PADDING) {
+            slots.set(i, 0);
+        }
+    }
+}
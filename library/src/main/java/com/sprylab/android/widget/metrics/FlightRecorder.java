@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size ring buffer of the most recent playback events of a view, for post-mortem analysis.
+ * <p>
+ * Each event consists of a {@link System#nanoTime()} timestamp, a type and two arguments packed into
+ * primitive longs. Recording is lock-free and does not allocate, so the recorder can stay enabled in
+ * production. The recorded events can be written to a compact binary file with
+ * {@link #dump(OutputStream)}; the format is:
+ * <pre>
+ * int     magic ('TVFR')
+ * int     format version (1)
+ * long    System.currentTimeMillis() at dump time
+ * long    System.nanoTime() at dump time
+ * int     number of events
+ * events, oldest first:
+ *   long  sequence number
+ *   long  timestamp (System.nanoTime())
+ *   int   event type
+ *   long  first argument
+ *   long  second argument
+ * </pre>
+ */
+public final class FlightRecorder {
+
+    public static final int EVENT_STATE = 1;             // old state, new state
+    public static final int EVENT_TARGET_STATE = 2;      // old target state, new target state
+    public static final int EVENT_SET_VIDEO_URI = 3;     // URI hash code, number of headers
+    public static final int EVENT_START = 4;
+    public static final int EVENT_PAUSE = 5;
+    public static final int EVENT_SEEK_TO = 6;           // position in ms
+    public static final int EVENT_STOP_PLAYBACK = 7;
+    public static final int EVENT_SUSPEND = 8;
+    public static final int EVENT_RESUME = 9;
+    public static final int EVENT_RELEASE = 10;          // whether the target state was cleared
+    public static final int EVENT_SURFACE_AVAILABLE = 11; // width, height
+    public static final int EVENT_SURFACE_DESTROYED = 12; // whether the surface was retained
+    public static final int EVENT_PREPARED = 13;         // video width, video height
+    public static final int EVENT_VIDEO_SIZE_CHANGED = 14; // video width, video height
+    public static final int EVENT_COMPLETION = 15;
+    public static final int EVENT_ERROR = 16;            // what, extra
+    public static final int EVENT_INFO = 17;             // what, extra
+    public static final int EVENT_BUFFERING_UPDATE = 18; // percent
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    private static final int MAGIC = 0x54564652; // 'TVFR'
+    private static final int VERSION = 1;
+
+    // sequence, timestamp, type, first argument, second argument
+    private static final int SLOT_SIZE = 5;
+
+    private static ExecutorService dumpExecutor;
+
+    private final int capacity;
+    private final AtomicLongArray slots;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile boolean enabled = true;
+
+    public FlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of events kept.
+     */
+    public FlightRecorder(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        slots = new AtomicLongArray(capacity * SLOT_SIZE);
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void record(int type) {
+        record(type, 0, 0);
+    }
+
+    public void record(int type, long arg1) {
+        record(type, arg1, 0);
+    }
+
+    /**
+     * Records an event, overwriting the oldest one if the buffer is full.
+     */
+    public void record(int type, long arg1, long arg2) {
+        if (!enabled) return;
+
+        final long seq = sequence.incrementAndGet();
+        final int base = (int) (seq % capacity) * SLOT_SIZE;
+        // invalidate the slot while it's written so readers skip it
+        slots.set(base, 0);
+        slots.set(base + 1, System.nanoTime());
+        slots.set(base + 2, type);
+        slots.set(base + 3, arg1);
+        slots.set(base + 4, arg2);
+        slots.set(base, seq);
+    }
+
+    /**
+     * @return the total number of events recorded, including the overwritten ones.
+     */
+    public long getRecordedCount() {
+        return sequence.get();
+    }
+
+    /**
+     * Writes the recorded events to the given stream in the format described above. The stream is
+     * not closed. Events recorded while dumping may be missing.
+     */
+    public void dump(OutputStream outputStream) throws IOException {
+        write(snapshot(), outputStream);
+    }
+
+    /**
+     * Writes the recorded events to the given file, replacing it.
+     */
+    public void dump(File file) throws IOException {
+        write(snapshot(), file);
+    }
+
+    /**
+     * Takes a snapshot of the recorded events on the calling thread and writes it to the given
+     * file on a background thread. Failures are ignored.
+     */
+    public void dumpAsync(final File file) {
+        final long[] snapshot = snapshot();
+        getDumpExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(snapshot, file);
+                } catch (IOException ignored) {
+                    // nothing we can do about it
+                }
+            }
+        });
+    }
+
+    private static void write(long[] snapshot, File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            write(snapshot, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void write(long[] snapshot, OutputStream outputStream) throws IOException {
+        final int count = snapshot.length / SLOT_SIZE;
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeLong(System.nanoTime());
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            final int base = i * SLOT_SIZE;
+            out.writeLong(snapshot[base]);
+            out.writeLong(snapshot[base + 1]);
+            out.writeInt((int) snapshot[base + 2]);
+            out.writeLong(snapshot[base + 3]);
+            out.writeLong(snapshot[base + 4]);
+        }
+        out.flush();
+    }
+
+    /*
+     * the consistent events, oldest first, each SLOT_SIZE longs
+     */
+    private long[] snapshot() {
+        final long last = sequence.get();
+        final long first = Math.max(1, last - capacity + 1);
+        final long[] events = new long[(int) (last - first + 1) * SLOT_SIZE];
+        int count = 0;
+        for (long seq = first; seq <= last; seq++) {
+            final int base = (int) (seq % capacity) * SLOT_SIZE;
+            // skip events not written completely yet
+            if (slots.get(base) != seq) continue;
+
+            final int target = count * SLOT_SIZE;
+            events[target + 1] = slots.get(base + 1);
+            events[target + 2] = slots.get(base + 2);
+            events[target + 3] = slots.get(base + 3);
+            events[target + 4] = slots.get(base + 4);
+            // skip events overwritten while they were copied, as the writer clears the sequence first
+            if (slots.get(base) == seq) {
+                events[target] = seq;
+                count++;
+            }
+        }
+        final long[] result = new long[count * SLOT_SIZE];
+        System.arraycopy(events, 0, result, 0, result.length);
+        return result;
+    }
+
+    private static synchronized ExecutorService getDumpExecutor() {
+        if (dumpExecutor == null) {
+            dumpExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "TextureVideoView-FlightRecorder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return dumpExecutor;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+/**
+ * Tracks the pacing of the frames rendered into a view using the timestamps of its
+ * {@link android.graphics.SurfaceTexture}.
+ * <p>
+ * The intervals between the most recent frames are kept in a preallocated ring buffer from which
+ * the effective frame rate and the jitter are computed. Frames taking considerably longer than the
+ * expected frame interval are counted as long frames, and the number of frames that fit into such
+ * an interval is counted as dropped. The expected interval is derived from the
+ * {@link #setContentFrameRate(float) content frame rate} if known, otherwise the shortest interval
+ * in the ring buffer is used.
+ * <p>
+ * {@link #onFrame(long)} does not allocate. This class is not thread-safe; it is meant to be used
+ * on the main thread only.
+ */
+public final class FramePacingMonitor {
+
+    static final int DEFAULT_CAPACITY = 120;
+
+    private static final double LONG_FRAME_FACTOR = 1.5;
+
+    private final long[] intervals;
+    private int next;
+    private int size;
+    private long lastTimestamp;
+
+    private float contentFrameRate;
+    private long frameCount;
+    private long longFrameCount;
+    private long droppedFrameCount;
+
+    public FramePacingMonitor() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of frame intervals the statistics are computed from.
+     */
+    public FramePacingMonitor(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        }
+        intervals = new long[capacity];
+    }
+
+    /**
+     * Sets the frame rate of the content, used to detect long and dropped frames.
+     *
+     * @param framesPerSecond the frame rate, or {@code 0} if unknown (default).
+     */
+    public void setContentFrameRate(float framesPerSecond) {
+        contentFrameRate = framesPerSecond;
+    }
+
+    public float getContentFrameRate() {
+        return contentFrameRate;
+    }
+
+    /**
+     * Records a rendered frame.
+     *
+     * @param timestampNanos the timestamp of the frame as returned by
+     *                       {@link android.graphics.SurfaceTexture#getTimestamp()}.
+     */
+    public void onFrame(long timestampNanos) {
+        if (timestampNanos <= 0) return;
+
+        frameCount++;
+        final long interval = timestampNanos - lastTimestamp;
+        final boolean continuous = lastTimestamp != 0;
+        lastTimestamp = timestampNanos;
+        if (!continuous || interval <= 0) return;
+
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        if (size < intervals.length) size++;
+
+        final long expected = getExpectedIntervalNanos();
+        if (expected > 0 && interval > expected * LONG_FRAME_FACTOR) {
+            longFrameCount++;
+            droppedFrameCount += Math.round((double) interval / expected) - 1;
+        }
+    }
+
+    /**
+     * Marks a gap in the frame sequence which must not be counted as long frame, e.g. after pausing,
+     * seeking or while buffering.
+     */
+    public void markDiscontinuity() {
+        lastTimestamp = 0;
+    }
+
+    /**
+     * Clears all statistics, e.g. when a new video is set.
+     */
+    public void reset() {
+        next = 0;
+        size = 0;
+        lastTimestamp = 0;
+        frameCount = 0;
+        longFrameCount = 0;
+        droppedFrameCount = 0;
+    }
+
+    /**
+     * @return the number of frames rendered since the last reset.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of frames that took noticeably longer than the expected frame interval.
+     */
+    public long getLongFrameCount() {
+        return longFrameCount;
+    }
+
+    /**
+     * @return the estimated number of frames dropped since the last reset.
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    /**
+     * @return the expected interval between two frames in nanoseconds, or {@code 0} if unknown.
+     */
+    public long getExpectedIntervalNanos() {
+        if (contentFrameRate > 0) {
+            return (long) (1000000000.0 / contentFrameRate);
+        }
+        long min = 0;
+        for (int i = 0; i < size; i++) {
+            if (min == 0 || intervals[i] < min) min = intervals[i];
+        }
+        return min;
+    }
+
+    /**
+     * @return the mean interval between the recent frames in nanoseconds.
+     */
+    public long getMeanIntervalNanos() {
+        if (size == 0) return 0;
+        long sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += intervals[i];
+        }
+        return sum / size;
+    }
+
+    /**
+     * @return the frame rate of the recent frames.
+     */
+    public float getEffectiveFrameRate() {
+        final long mean = getMeanIntervalNanos();
+        return mean == 0 ? 0 : (float) (1000000000.0 / mean);
+    }
+
+    /**
+     * @return the standard deviation of the recent frame intervals in nanoseconds.
+     */
+    public long getJitterNanos() {
+        if (size < 2) return 0;
+        final long mean = getMeanIntervalNanos();
+        double sumOfSquares = 0;
+        for (int i = 0; i < size; i++) {
+            final double delta = intervals[i] - mean;
+            sumOfSquares += delta * delta;
+        }
+        return (long) Math.sqrt(sumOfSquares / size);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+/**
+ * An immutable copy of the values of a {@link LatencyHistogram}.
+ * <p>
+ * Snapshots of several histograms can be combined with {@link #merge(HistogramSnapshot)}, e.g. to
+ * aggregate the statistics of several processes or registries.
+ */
+public final class HistogramSnapshot {
+
+    /**
+     * A snapshot without any values.
+     */
+    public static final HistogramSnapshot EMPTY =
+            new HistogramSnapshot(new long[LatencyHistogram.BUCKET_COUNT], 0, 0, 0);
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the values fall.
+     *
+     * @param percentile the percentile between {@code 0} and {@code 100}, e.g. {@code 99.9}.
+     * @return the upper bound of the bucket containing the percentile, or {@code 0} if the snapshot
+     * is empty.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the number of values that are less than or equal to the given value. As values are
+     * bucketed, the result includes all values of the bucket containing {@code value}.
+     *
+     * @param value the upper bound.
+     * @return the cumulative count.
+     */
+    public long getCountAtOrBelow(long value) {
+        if (value < 0) return 0;
+
+        final int last = LatencyHistogram.bucketIndex(value);
+        long seen = 0;
+        for (int i = 0; i <= last; i++) {
+            seen += counts[i];
+        }
+        return seen;
+    }
+
+    /**
+     * Combines this snapshot with another one.
+     *
+     * @param other the snapshot to add.
+     * @return a new snapshot containing the values of both snapshots.
+     */
+    public HistogramSnapshot merge(HistogramSnapshot other) {
+        final long[] merged = new long[counts.length];
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = counts[i] + other.counts[i];
+        }
+        return new HistogramSnapshot(merged, count + other.count, sum + other.sum, Math.max(max, other.max));
+    }
+
+    long getBucketCount(int index) {
+        return counts[index];
+    }
+}
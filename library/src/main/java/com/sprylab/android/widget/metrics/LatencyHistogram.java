@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values (typically latencies in nanoseconds) with
+ * logarithmic buckets.
+ * <p>
+ * Every power of two is divided into {@value #SUB_BUCKET_COUNT} linear sub-buckets, so reported
+ * percentiles are accurate to about 12% over the whole range of {@code long} values. Recording a
+ * value does not allocate.
+ * <p>
+ * The buckets are striped: each recording thread is mapped to one of several
+ * {@link AtomicLongArray}s, so threads recording into the same histogram rarely contend on the
+ * same cache line. Readers sum up all stripes, see {@link #snapshot()}.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    // the total count and sum are kept behind the buckets of each stripe
+    private static final int COUNT_INDEX = BUCKET_COUNT;
+    private static final int SUM_INDEX = BUCKET_COUNT + 1;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates a histogram with one stripe per available processor (at most
+     * {@value Stripes#MAX_STRIPES}).
+     */
+    public LatencyHistogram() {
+        this(Stripes.defaultStripeCount());
+    }
+
+    /**
+     * Creates a histogram with the given number of stripes. Every stripe takes about 4 KB, so
+     * histograms that are only recorded from a single thread should use one stripe.
+     *
+     * @param stripeCount the number of stripes, rounded up to a power of two.
+     */
+    public LatencyHistogram(int stripeCount) {
+        final int count = Stripes.roundUp(stripeCount);
+        stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray(BUCKET_COUNT + 2);
+        }
+        stripeMask = count - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as {@code 0}.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+
+        final AtomicLongArray stripe = stripes[Stripes.index(stripeMask)];
+        stripe.incrementAndGet(bucketIndex(value));
+        stripe.incrementAndGet(COUNT_INDEX);
+        stripe.addAndGet(SUM_INDEX, value);
+        updateMax(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            count += stripe.get(COUNT_INDEX);
+        }
+        return count;
+    }
+
+    public long getSum() {
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes) {
+            sum += stripe.get(SUM_INDEX);
+        }
+        return sum;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        final long count = getCount();
+        return count == 0 ? 0 : getSum() / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall.
+     *
+     * @param percentile the percentile between {@code 0} and {@code 100}, e.g. {@code 99.9}.
+     * @return the upper bound of the bucket containing the percentile, or {@code 0} if nothing has
+     * been recorded yet.
+     * @see HistogramSnapshot#getPercentile(double)
+     */
+    public long getPercentile(double percentile) {
+        return snapshot().getPercentile(percentile);
+    }
+
+    /**
+     * Sums up all stripes into an immutable snapshot. Values recorded concurrently may or may not be
+     * included, but every value is either fully included in the buckets or not at all.
+     *
+     * @return a snapshot of the recorded values.
+     */
+    public HistogramSnapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                final long bucket = stripe.get(i);
+                counts[i] += bucket;
+                count += bucket;
+            }
+            sum += stripe.get(SUM_INDEX);
+        }
+        return new HistogramSnapshot(counts, count, sum, max.get());
+    }
+
+    /**
+     * Adds all values of the given snapshot to this histogram, e.g. to aggregate the histograms of
+     * several views.
+     *
+     * @param snapshot the values to add.
+     */
+    public void add(HistogramSnapshot snapshot) {
+        final AtomicLongArray stripe = stripes[Stripes.index(stripeMask)];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long bucket = snapshot.getBucketCount(i);
+            if (bucket != 0) {
+                stripe.addAndGet(i, bucket);
+            }
+        }
+        stripe.addAndGet(COUNT_INDEX, snapshot.getCount());
+        stripe.addAndGet(SUM_INDEX, snapshot.getSum());
+        updateMax(snapshot.getMax());
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may be partially lost.
+     */
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < stripe.length(); i++) {
+                stripe.set(i, 0);
+            }
+        }
+        max.set(0);
+    }
+
+    private void updateMax(long value) {
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) break;
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = msb - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final int subBucket = index % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        return bucketLowerBound(index) + (1L << shift) - 1;
+    }
+}
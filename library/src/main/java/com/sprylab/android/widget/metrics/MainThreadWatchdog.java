@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Detects player operations that block the main thread for longer than a threshold, e.g.
+ * {@code MediaPlayer.release()} waiting for a stuck decoder.
+ * <p>
+ * {@link com.sprylab.android.widget.TextureVideoView} wraps its known blocking operations in
+ * {@link #begin(String)} and {@link #end(long)}. A daemon thread wakes up when an operation exceeds
+ * the {@link #setThresholdMillis(long) threshold}, captures the stack of the blocked thread while it
+ * is still blocked and passes a {@link Violation} to the {@link OnViolationListener}. Reports are
+ * rate-limited by {@link #setMinReportIntervalMillis(long)}.
+ * <p>
+ * The watchdog is enabled by setting a listener; while disabled, {@link #begin(String)} costs a
+ * volatile read. Only operations on one thread (the main thread) are monitored at a time, nested
+ * operations are attributed to the outermost one.
+ */
+public final class MainThreadWatchdog {
+
+    public static final String OPEN_VIDEO = "openVideo";
+    public static final String RELEASE = "release";
+    public static final String STOP_PLAYBACK = "stopPlayback";
+    public static final String GET_AUDIO_SESSION_ID = "getAudioSessionId";
+
+    private static final long DEFAULT_THRESHOLD_MILLIS = 100;
+    private static final long DEFAULT_MIN_REPORT_INTERVAL_MILLIS = 10000;
+
+    /**
+     * Receives the violations of the watchdog.
+     */
+    public interface OnViolationListener {
+
+        /**
+         * Called on the watchdog thread while the operation is still blocking.
+         *
+         * @param violation the violation.
+         */
+        void onViolation(Violation violation);
+    }
+
+    /**
+     * A report of a blocking operation. Its stack trace is the stack of the blocked thread at the
+     * time the threshold was exceeded, so it can be logged or sent to a crash reporter as is.
+     */
+    public static final class Violation extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String operation;
+        private final long blockedMillis;
+        private final int suppressedCount;
+
+        Violation(String operation, long blockedMillis, int suppressedCount, StackTraceElement[] stackTrace) {
+            super(operation + " blocked the main thread for " + blockedMillis + " ms"
+                    + (suppressedCount > 0 ? " (" + suppressedCount + " earlier violations suppressed)" : ""));
+            this.operation = operation;
+            this.blockedMillis = blockedMillis;
+            this.suppressedCount = suppressedCount;
+            setStackTrace(stackTrace);
+        }
+
+        /**
+         * @return the name of the operation, e.g. {@link #OPEN_VIDEO}.
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the time the operation had been blocking when the stack was captured; the
+         * operation may have taken longer.
+         */
+        public long getBlockedMillis() {
+            return blockedMillis;
+        }
+
+        /**
+         * @return the number of violations dropped by the rate limit since the previous report.
+         */
+        public int getSuppressedCount() {
+            return suppressedCount;
+        }
+    }
+
+    private static volatile OnViolationListener listener;
+    private static volatile long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_THRESHOLD_MILLIS);
+    private static volatile long minReportIntervalMillis = DEFAULT_MIN_REPORT_INTERVAL_MILLIS;
+
+    // written by the monitored thread only; sequence is written last in begin() and first in end()
+    private static volatile String operation;
+    private static volatile Thread operationThread;
+    private static volatile long operationStartNanos;
+    private static volatile long operationSequence;
+    private static int depth;
+
+    private static volatile Thread watchdogThread;
+
+    // accessed by the watchdog thread only
+    private static long lastReportMillis;
+    private static int suppressedCount;
+
+    private MainThreadWatchdog() {
+    }
+
+    /**
+     * Sets the listener receiving violations and starts the watchdog thread if necessary.
+     *
+     * @param listener the listener, {@code null} to disable the watchdog.
+     */
+    public static synchronized void setOnViolationListener(OnViolationListener listener) {
+        if (listener != null && watchdogThread == null) {
+            watchdogThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watch();
+                }
+            }, "TextureVideoView-Watchdog");
+            watchdogThread.setDaemon(true);
+            watchdogThread.start();
+        }
+        MainThreadWatchdog.listener = listener;
+    }
+
+    public static boolean isEnabled() {
+        return listener != null;
+    }
+
+    /**
+     * Sets the time an operation may block before it is reported. Defaults to
+     * {@value #DEFAULT_THRESHOLD_MILLIS} ms.
+     */
+    public static void setThresholdMillis(long thresholdMillis) {
+        if (thresholdMillis <= 0) {
+            throw new IllegalArgumentException("thresholdMillis must be positive: " + thresholdMillis);
+        }
+        thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    public static long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    /**
+     * Sets the minimum time between two reports; violations in between are only counted. Defaults
+     * to {@value #DEFAULT_MIN_REPORT_INTERVAL_MILLIS} ms.
+     */
+    public static void setMinReportIntervalMillis(long minReportIntervalMillis) {
+        if (minReportIntervalMillis < 0) {
+            throw new IllegalArgumentException("minReportIntervalMillis must not be negative: " + minReportIntervalMillis);
+        }
+        MainThreadWatchdog.minReportIntervalMillis = minReportIntervalMillis;
+    }
+
+    public static long getMinReportIntervalMillis() {
+        return minReportIntervalMillis;
+    }
+
+    /**
+     * Marks the beginning of a potentially blocking operation. Must be called from the main thread.
+     *
+     * @param name the name of the operation, e.g. {@link #RELEASE}.
+     * @return the token to pass to {@link #end(long)}.
+     */
+    public static long begin(String name) {
+        if (depth > 0) {
+            depth++;
+            return 0;
+        }
+        if (listener == null) return 0;
+
+        depth = 1;
+        operation = name;
+        operationThread = Thread.currentThread();
+        operationStartNanos = System.nanoTime();
+        final long sequence = operationSequence + 1;
+        operationSequence = sequence;
+        LockSupport.unpark(watchdogThread);
+        return sequence;
+    }
+
+    /**
+     * Marks the end of an operation.
+     *
+     * @param token the value returned by {@link #begin(String)}.
+     */
+    public static void end(long token) {
+        if (token == 0) {
+            if (depth > 0) depth--;
+            return;
+        }
+        // an even sequence marks an idle thread
+        operationSequence = token + 1;
+        operation = null;
+        operationThread = null;
+        depth = 0;
+    }
+
+    private static void watch() {
+        long reportedSequence = 0;
+        while (true) {
+            final long sequence = operationSequence;
+            if ((sequence & 1) == 0 || sequence == reportedSequence || listener == null) {
+                LockSupport.park();
+                continue;
+            }
+            final long blockedNanos = System.nanoTime() - operationStartNanos;
+            if (blockedNanos < thresholdNanos) {
+                LockSupport.parkNanos(thresholdNanos - blockedNanos);
+                continue;
+            }
+            final String name = operation;
+            final Thread thread = operationThread;
+            if (name == null || thread == null) continue;
+
+            final StackTraceElement[] stackTrace = thread.getStackTrace();
+            // don't report an operation that ended while the stack was captured
+            if (operationSequence != sequence) continue;
+            reportedSequence = sequence;
+            report(name, TimeUnit.NANOSECONDS.toMillis(blockedNanos), stackTrace);
+        }
+    }
+
+    private static void report(String name, long blockedMillis, StackTraceElement[] stackTrace) {
+        final long now = SystemClock.elapsedRealtime();
+        if (lastReportMillis != 0 && now - lastReportMillis < minReportIntervalMillis) {
+            suppressedCount++;
+            return;
+        }
+        lastReportMillis = now;
+        final OnViolationListener listener = MainThreadWatchdog.listener;
+        if (listener != null) {
+            listener.onViolation(new Violation(name, blockedMillis, suppressedCount, stackTrace));
+        }
+        suppressedCount = 0;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures the latency of the {@link android.media.MediaPlayer} calls made by
+ * {@link com.sprylab.android.widget.TextureVideoView} and its helpers, per method and device.
+ * <p>
+ * Every call is wrapped like this:
+ * <pre>
+ * final long start = MediaPlayerProfiler.begin();
+ * mediaPlayer.seekTo(msec);
+ * MediaPlayerProfiler.end(MediaPlayerProfiler.SEEK_TO, start);
+ * </pre>
+ * While the profiler is disabled (the default), {@link #begin()} only reads a volatile field and
+ * {@link #end(int, long)} returns immediately. When enabled, the durations are recorded into one
+ * lock-free {@link LatencyHistogram} per method, and the calls per second are counted.
+ */
+public final class MediaPlayerProfiler {
+
+    public static final int CREATE = 0;
+    public static final int SET_DATA_SOURCE = 1;
+    public static final int SET_SURFACE = 2;
+    public static final int PREPARE_ASYNC = 3;
+    public static final int START = 4;
+    public static final int PAUSE = 5;
+    public static final int SEEK_TO = 6;
+    public static final int GET_CURRENT_POSITION = 7;
+    public static final int GET_DURATION = 8;
+    public static final int IS_PLAYING = 9;
+    public static final int STOP = 10;
+    public static final int RESET = 11;
+    public static final int RELEASE = 12;
+
+    public static final int METHOD_COUNT = 13;
+
+    private static final String[] METHOD_NAMES = {
+            "create", "setDataSource", "setSurface", "prepareAsync", "start", "pause", "seekTo",
+            "getCurrentPosition", "getDuration", "isPlaying", "stop", "reset", "release"
+    };
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[METHOD_COUNT];
+
+    static {
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            // one stripe each, the histograms are recorded into by only a few threads
+            HISTOGRAMS[i] = new LatencyHistogram(1);
+        }
+    }
+
+    // calls per second: the second currently counted, its count and the count of the previous one
+    private static final AtomicLongArray CURRENT_SECOND = new AtomicLongArray(METHOD_COUNT);
+    private static final AtomicLongArray CURRENT_SECOND_CALLS = new AtomicLongArray(METHOD_COUNT);
+    private static final AtomicLongArray PREVIOUS_SECOND_CALLS = new AtomicLongArray(METHOD_COUNT);
+
+    private static volatile boolean enabled;
+
+    private MediaPlayerProfiler() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        MediaPlayerProfiler.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the start timestamp to pass to {@link #end(int, long)}, or {@code 0} if disabled.
+     */
+    public static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a call.
+     *
+     * @param method     the called method, one of the constants of this class.
+     * @param startNanos the value returned by {@link #begin()}.
+     */
+    public static void end(int method, long startNanos) {
+        if (startNanos == 0) return;
+
+        record(method, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a call measured by the caller. Ignored while the profiler is disabled.
+     *
+     * @param method        the called method, one of the constants of this class.
+     * @param durationNanos the duration of the call.
+     */
+    public static void record(int method, long durationNanos) {
+        if (!enabled) return;
+
+        final long now = System.nanoTime();
+        HISTOGRAMS[method].record(durationNanos);
+
+        final long second = now / NANOS_PER_SECOND;
+        final long counted = CURRENT_SECOND.get(method);
+        if (counted != second && CURRENT_SECOND.compareAndSet(method, counted, second)) {
+            final long calls = CURRENT_SECOND_CALLS.getAndSet(method, 0);
+            PREVIOUS_SECOND_CALLS.set(method, counted == second - 1 ? calls : 0);
+        }
+        CURRENT_SECOND_CALLS.incrementAndGet(method);
+    }
+
+    /**
+     * @return the latency histogram of the given method in nanoseconds.
+     */
+    public static LatencyHistogram getHistogram(int method) {
+        return HISTOGRAMS[method];
+    }
+
+    /**
+     * @return the number of calls of the given method during the last completed second.
+     */
+    public static long getCallsPerSecond(int method) {
+        final long second = System.nanoTime() / NANOS_PER_SECOND;
+        final long counted = CURRENT_SECOND.get(method);
+        if (counted == second) {
+            return PREVIOUS_SECOND_CALLS.get(method);
+        } else if (counted == second - 1) {
+            return CURRENT_SECOND_CALLS.get(method);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the name of the given method.
+     */
+    public static String getMethodName(int method) {
+        return METHOD_NAMES[method];
+    }
+
+    /**
+     * Clears all recorded calls.
+     */
+    public static void reset() {
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            HISTOGRAMS[i].reset();
+            CURRENT_SECOND.set(i, 0);
+            CURRENT_SECOND_CALLS.set(i, 0);
+            PREVIOUS_SECOND_CALLS.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The default, in-memory {@link PlaybackMetrics} implementation.
+ * <p>
+ * Metrics are created on first use and kept until the registry is {@link #reset()}. Looking up an
+ * existing metric doesn't lock, and counters and histograms are striped, so many views can report
+ * into the same registry concurrently. {@link #snapshot()} copies all values for export or
+ * aggregation.
+ */
+public final class MetricsRegistry implements PlaybackMetrics {
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @return the registry the views report into unless configured otherwise.
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    @Override
+    public void incrementCounter(String name, long delta) {
+        counter(name).add(delta);
+    }
+
+    @Override
+    public void addToGauge(String name, long delta) {
+        gauge(name).add(delta);
+    }
+
+    @Override
+    public void recordLatency(String name, long nanos) {
+        histogram(name).record(nanos);
+    }
+
+    /**
+     * @return the counter with the given name, created if necessary.
+     */
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            final Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * @return the gauge with the given name, created if necessary.
+     */
+    public Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            final Gauge created = new Gauge();
+            gauge = gauges.putIfAbsent(name, created);
+            if (gauge == null) gauge = created;
+        }
+        return gauge;
+    }
+
+    /**
+     * @return the histogram with the given name, created if necessary.
+     */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            final LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * Copies the current values of all metrics.
+     *
+     * @return an immutable snapshot.
+     */
+    public MetricsSnapshot snapshot() {
+        final MetricsSnapshot.Builder builder = new MetricsSnapshot.Builder();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            builder.counter(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            builder.gauge(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            builder.histogram(entry.getKey(), entry.getValue().snapshot());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Adds the counters and histograms of a snapshot to this registry and sets its gauges, e.g. to
+     * restore metrics persisted by an earlier process.
+     *
+     * @param snapshot the metrics to add.
+     */
+    public void merge(MetricsSnapshot snapshot) {
+        for (Map.Entry<String, Long> entry : snapshot.getCounters().entrySet()) {
+            counter(entry.getKey()).add(entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : snapshot.getGauges().entrySet()) {
+            gauge(entry.getKey()).set(entry.getValue());
+        }
+        for (Map.Entry<String, HistogramSnapshot> entry : snapshot.getHistograms().entrySet()) {
+            histogram(entry.getKey()).add(entry.getValue());
+        }
+    }
+
+    /**
+     * Removes all counters and histograms. Gauges are kept, as they describe the current state
+     * rather than past events.
+     */
+    public void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+}
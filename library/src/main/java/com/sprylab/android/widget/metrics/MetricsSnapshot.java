@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable copy of the metrics of a {@link MetricsRegistry}, sorted by name.
+ */
+public final class MetricsSnapshot {
+
+    private final SortedMap<String, Long> counters;
+    private final SortedMap<String, Long> gauges;
+    private final SortedMap<String, HistogramSnapshot> histograms;
+
+    private MetricsSnapshot(Builder builder) {
+        counters = Collections.unmodifiableSortedMap(builder.counters);
+        gauges = Collections.unmodifiableSortedMap(builder.gauges);
+        histograms = Collections.unmodifiableSortedMap(builder.histograms);
+    }
+
+    public SortedMap<String, Long> getCounters() {
+        return counters;
+    }
+
+    public SortedMap<String, Long> getGauges() {
+        return gauges;
+    }
+
+    public SortedMap<String, HistogramSnapshot> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * Combines this snapshot with another one, e.g. the snapshots of several processes. Counters
+     * and gauges are summed up, histograms are {@link HistogramSnapshot#merge(HistogramSnapshot)
+     * merged}.
+     *
+     * @param other the snapshot to add.
+     * @return a new snapshot containing the metrics of both snapshots.
+     */
+    public MetricsSnapshot merge(MetricsSnapshot other) {
+        final Builder builder = new Builder();
+        builder.counters.putAll(counters);
+        builder.gauges.putAll(gauges);
+        builder.histograms.putAll(histograms);
+        for (Map.Entry<String, Long> entry : other.counters.entrySet()) {
+            builder.counter(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : other.gauges.entrySet()) {
+            builder.gauge(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, HistogramSnapshot> entry : other.histograms.entrySet()) {
+            builder.histogram(entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    static final class Builder {
+
+        final TreeMap<String, Long> counters = new TreeMap<>();
+        final TreeMap<String, Long> gauges = new TreeMap<>();
+        final TreeMap<String, HistogramSnapshot> histograms = new TreeMap<>();
+
+        Builder counter(String name, long value) {
+            final Long current = counters.get(name);
+            counters.put(name, current != null ? current + value : value);
+            return this;
+        }
+
+        Builder gauge(String name, long value) {
+            final Long current = gauges.get(name);
+            gauges.put(name, current != null ? current + value : value);
+            return this;
+        }
+
+        Builder histogram(String name, HistogramSnapshot value) {
+            final HistogramSnapshot current = histograms.get(name);
+            histograms.put(name, current != null ? current.merge(value) : value);
+            return this;
+        }
+
+        MetricsSnapshot build() {
+            return new MetricsSnapshot(this);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+/**
+ * Receives the metrics reported by {@link com.sprylab.android.widget.TextureVideoView} and its
+ * helpers, see {@code TextureVideoView.setPlaybackMetrics(PlaybackMetrics)}.
+ * <p>
+ * Implementations are called from the main thread as well as from the player and release threads,
+ * so they must be thread-safe, and they should neither block nor allocate per call. The default
+ * implementation is {@link MetricsRegistry}; use {@link #NONE} to disable reporting.
+ */
+public interface PlaybackMetrics {
+
+    /** Number of videos opened by a view. */
+    String COUNTER_VIDEOS_OPENED = "videos_opened";
+    /** Number of opened videos that adopted a player prepared by the {@code VideoPreloader}. */
+    String COUNTER_PRELOAD_HITS = "preload_hits";
+    /** Number of players served by an idle player of the {@code MediaPlayerPool}. */
+    String COUNTER_POOL_HITS = "pool_hits";
+    /** Number of players the {@code MediaPlayerPool} had to create. */
+    String COUNTER_POOL_MISSES = "pool_misses";
+    /** Number of players created, including pre-warmed ones. */
+    String COUNTER_PLAYERS_CREATED = "players_created";
+    /** Number of players that reached the end of their video. */
+    String COUNTER_COMPLETIONS = "completions";
+    /** Number of player errors. */
+    String COUNTER_ERRORS = "errors";
+    /** Number of rebuffering stalls after the first frame. */
+    String COUNTER_STALLS = "stalls";
+    /** Number of frames rendered by all views. */
+    String COUNTER_FRAMES_RENDERED = "frames_rendered";
+    /** Number of frames dropped by all views, see {@link FramePacingMonitor#getDroppedFrameCount()}. */
+    String COUNTER_FRAMES_DROPPED = "frames_dropped";
+    /** Number of times a view lost its decoder to a view with a higher priority. */
+    String COUNTER_DECODER_REVOCATIONS = "decoder_revocations";
+
+    /** Number of players checked out of the {@code MediaPlayerPool} and not yet returned. */
+    String GAUGE_PLAYERS_IN_USE = "players_in_use";
+
+    /** Time from setting the video until the player is prepared, in nanoseconds. */
+    String HISTOGRAM_TIME_TO_PREPARED = "time_to_prepared";
+    /** Time from setting the video until its first frame is rendered, in nanoseconds. */
+    String HISTOGRAM_TIME_TO_FIRST_FRAME = "time_to_first_frame";
+    /** Duration of rebuffering stalls, in nanoseconds. */
+    String HISTOGRAM_STALL_DURATION = "stall_duration";
+    /** Time spent stopping and releasing or recycling a player, in nanoseconds. */
+    String HISTOGRAM_RELEASE = "release";
+
+    /**
+     * Discards all metrics.
+     */
+    PlaybackMetrics NONE = new PlaybackMetrics() {
+        @Override
+        public void incrementCounter(String name, long delta) {
+        }
+
+        @Override
+        public void addToGauge(String name, long delta) {
+        }
+
+        @Override
+        public void recordLatency(String name, long nanos) {
+        }
+    };
+
+    /**
+     * Increments a counter.
+     *
+     * @param name  the name of the counter, e.g. {@link #COUNTER_VIDEOS_OPENED}.
+     * @param delta the non-negative increment.
+     */
+    void incrementCounter(String name, long delta);
+
+    /**
+     * Adds a (possibly negative) value to a gauge.
+     *
+     * @param name  the name of the gauge, e.g. {@link #GAUGE_PLAYERS_IN_USE}.
+     * @param delta the value to add.
+     */
+    void addToGauge(String name, long delta);
+
+    /**
+     * Records a latency.
+     *
+     * @param name  the name of the histogram, e.g. {@link #HISTOGRAM_TIME_TO_FIRST_FRAME}.
+     * @param nanos the latency in nanoseconds.
+     */
+    void recordLatency(String name, long nanos);
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * The analytics events of one playback session, i.e. of one video shown by a view, aggregated on
+ * the main thread and handed to a {@link SessionEventWriter} when the session ends.
+ * <p>
+ * Besides the aggregated counters, the first {@value #MAX_EVENTS} events are kept with their offset
+ * from the start of the session; further events are only counted, which bounds the memory of a
+ * session. This class is not thread-safe; a session must not be modified after it has been
+ * submitted.
+ */
+public final class PlaybackSession {
+
+    public static final int EVENT_START = 1;
+    public static final int EVENT_PAUSE = 2;
+    public static final int EVENT_SEEK = 3;          // position in ms
+    public static final int EVENT_STALL_START = 4;
+    public static final int EVENT_STALL_END = 5;     // stall duration in ms
+    public static final int EVENT_ERROR = 6;         // what
+    public static final int EVENT_COMPLETION = 7;
+    public static final int EVENT_QUARTILE = 8;      // quartile reached, 1 to 4
+
+    static final int MAX_EVENTS = 64;
+
+    // keeps the encoded URI well below the limit of DataOutput.writeUTF()
+    private static final int MAX_URI_LENGTH = 1024;
+
+    private static final Random RANDOM = new Random();
+
+    private final long sessionId;
+    private final String uri;
+    private final long startMillis;
+    private final long startNanos;
+    private long endMillis;
+
+    private int durationMillis;
+    private int timeToFirstFrameMillis;
+    private int quartile;
+    private int seekCount;
+    private int stallCount;
+    private long totalStallMillis;
+    private int errorCount;
+
+    private final byte[] eventTypes = new byte[MAX_EVENTS];
+    private final int[] eventOffsets = new int[MAX_EVENTS];
+    private final int[] eventArgs = new int[MAX_EVENTS];
+    private int eventCount;
+    private int droppedEventCount;
+
+    /**
+     * Starts a new session.
+     *
+     * @param uri the video of the session.
+     */
+    public PlaybackSession(String uri) {
+        synchronized (RANDOM) {
+            sessionId = RANDOM.nextLong();
+        }
+        this.uri = uri != null && uri.length() > MAX_URI_LENGTH ? uri.substring(0, MAX_URI_LENGTH) : uri;
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public void setDurationMillis(int durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public int getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setTimeToFirstFrameMillis(int timeToFirstFrameMillis) {
+        this.timeToFirstFrameMillis = timeToFirstFrameMillis;
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param type the type of the event, e.g. {@link #EVENT_START}.
+     * @param arg  the argument of the event, see the type.
+     */
+    public void record(int type, int arg) {
+        switch (type) {
+            case EVENT_SEEK:
+                seekCount++;
+                break;
+            case EVENT_STALL_START:
+                stallCount++;
+                break;
+            case EVENT_STALL_END:
+                totalStallMillis += arg;
+                break;
+            case EVENT_ERROR:
+                errorCount++;
+                break;
+        }
+        if (eventCount == MAX_EVENTS) {
+            droppedEventCount++;
+            return;
+        }
+        eventTypes[eventCount] = (byte) type;
+        eventOffsets[eventCount] = (int) ((System.nanoTime() - startNanos) / 1000000);
+        eventArgs[eventCount] = arg;
+        eventCount++;
+    }
+
+    /**
+     * Updates the playback position and records an {@link #EVENT_QUARTILE} event for every quartile
+     * of the video reached for the first time.
+     *
+     * @param positionMillis the current position.
+     */
+    public void updatePosition(int positionMillis) {
+        if (durationMillis <= 0) return;
+
+        final int reached = (int) Math.min(4, (long) positionMillis * 4 / durationMillis);
+        while (quartile < reached) {
+            record(EVENT_QUARTILE, ++quartile);
+        }
+    }
+
+    /**
+     * @return the highest quartile reached, {@code 0} to {@code 4}.
+     */
+    public int getQuartile() {
+        return quartile;
+    }
+
+    public int getEventCount() {
+        return eventCount + droppedEventCount;
+    }
+
+    /**
+     * Marks the end of the session.
+     */
+    public void end() {
+        if (endMillis == 0) {
+            endMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Writes the session:
+     * <pre>
+     * long    session id
+     * UTF     URI
+     * long    start (System.currentTimeMillis())
+     * long    end (System.currentTimeMillis())
+     * int     duration of the video in ms
+     * int     time to first frame in ms
+     * byte    highest quartile reached
+     * int     number of seeks
+     * int     number of stalls
+     * long    total stall duration in ms
+     * int     number of errors
+     * int     number of dropped events
+     * int     number of events
+     * events:
+     *   byte  event type
+     *   int   offset from the start in ms
+     *   int   argument
+     * </pre>
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(sessionId);
+        out.writeUTF(uri != null ? uri : "");
+        out.writeLong(startMillis);
+        out.writeLong(endMillis);
+        out.writeInt(durationMillis);
+        out.writeInt(timeToFirstFrameMillis);
+        out.writeByte(quartile);
+        out.writeInt(seekCount);
+        out.writeInt(stallCount);
+        out.writeLong(totalStallMillis);
+        out.writeInt(errorCount);
+        out.writeInt(droppedEventCount);
+        out.writeInt(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            out.writeByte(eventTypes[i]);
+            out.writeInt(eventOffsets[i]);
+            out.writeInt(eventArgs[i]);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Emits trace sections for the playback pipeline of
+ * {@link com.sprylab.android.widget.TextureVideoView}, both as {@code android.os.Trace} sections
+ * (visible in systrace and Perfetto, API level 18 and above) and into the in-memory
+ * {@link TraceCollector}. Both are disabled by default; while disabled, {@link #begin(String)} and
+ * {@link #end(String, long)} cost two volatile reads.
+ * <p>
+ * A section must be ended on the thread it was begun on:
+ * <pre>
+ * final long start = PlaybackTrace.begin(PlaybackTrace.SEEK_TO);
+ * mediaPlayer.seekTo(msec);
+ * PlaybackTrace.end(PlaybackTrace.SEEK_TO, start);
+ * </pre>
+ */
+public final class PlaybackTrace {
+
+    private static final String TAG = PlaybackTrace.class.getSimpleName();
+
+    public static final String OPEN_VIDEO = "TVV.openVideo";
+    public static final String PREPARE_ASYNC = "TVV.prepareAsync";
+    public static final String PREPARE = "TVV.prepare";
+    public static final String ON_PREPARED = "TVV.onPrepared";
+    public static final String SEEK_TO = "TVV.seekTo";
+    public static final String RELEASE = "TVV.release";
+
+    private static final TraceCollector COLLECTOR = new TraceCollector();
+
+    private static volatile boolean systraceEnabled;
+
+    private static Method beginSectionMethod;
+    private static Method endSectionMethod;
+
+    private PlaybackTrace() {
+    }
+
+    /**
+     * Enables or disables emitting {@code android.os.Trace} sections. Ignored below API level 18.
+     * Toggling this while a section is open results in an unbalanced section.
+     */
+    public static synchronized void setSystraceEnabled(boolean enabled) {
+        // JELLY_BEAN_MR2 is newer than the platform the library is compiled against
+        if (enabled && Build.VERSION.SDK_INT >= 18 && beginSectionMethod == null) {
+            try {
+                final Class<?> trace = Class.forName("android.os.Trace");
+                beginSectionMethod = trace.getMethod("beginSection", String.class);
+                endSectionMethod = trace.getMethod("endSection");
+            } catch (ClassNotFoundException | NoSuchMethodException ex) {
+                Log.w(TAG, "android.os.Trace is not available.", ex);
+            }
+        }
+        systraceEnabled = enabled && beginSectionMethod != null;
+    }
+
+    public static boolean isSystraceEnabled() {
+        return systraceEnabled;
+    }
+
+    /**
+     * @return the process-wide collector, see {@link TraceCollector#setEnabled(boolean)}.
+     */
+    public static TraceCollector getCollector() {
+        return COLLECTOR;
+    }
+
+    /**
+     * Begins a section on the calling thread.
+     *
+     * @param name the name of the section, one of the constants of this class.
+     * @return the start timestamp to pass to {@link #end(String, long)}.
+     */
+    public static long begin(String name) {
+        if (systraceEnabled) {
+            invoke(beginSectionMethod, name);
+        }
+        return COLLECTOR.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Ends the section most recently begun on the calling thread.
+     *
+     * @param name       the name passed to {@link #begin(String)}.
+     * @param startNanos the value returned by {@link #begin(String)}.
+     */
+    public static void end(String name, long startNanos) {
+        if (systraceEnabled) {
+            invoke(endSectionMethod);
+        }
+        if (startNanos != 0) {
+            COLLECTOR.addSpan(name, startNanos, System.nanoTime());
+        }
+    }
+
+    /**
+     * Begins an asynchronous span in the collector, e.g. from issuing {@code prepareAsync()} to
+     * {@code onPrepared()}.
+     */
+    public static void beginAsync(String name, long id) {
+        if (COLLECTOR.isEnabled()) {
+            COLLECTOR.beginAsync(name, id);
+        }
+    }
+
+    /**
+     * Ends an asynchronous span in the collector.
+     */
+    public static void endAsync(String name, long id) {
+        if (COLLECTOR.isEnabled()) {
+            COLLECTOR.endAsync(name, id);
+        }
+    }
+
+    private static void invoke(Method method, Object... args) {
+        try {
+            method.invoke(null, args);
+        } catch (Exception ex) {
+            systraceEnabled = false;
+            Log.w(TAG, "Unable to trace, disabling systrace sections.", ex);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the metrics of a {@link MetricsRegistry} in the Prometheus text exposition format
+ * (version 0.0.4), either served over HTTP on the loopback interface or written periodically to a
+ * file, so that device lab tooling can scrape them (e.g. through {@code adb forward}).
+ * <p>
+ * Counters are exported with a {@code _total} suffix, histograms as summaries in seconds with the
+ * 50th, 90th, 99th and 99.9th percentile. All names are prefixed with {@value #PREFIX}.
+ */
+public final class PrometheusExporter {
+
+    private static final String TAG = PrometheusExporter.class.getSimpleName();
+
+    static final String PREFIX = "tvv_";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final int SOCKET_TIMEOUT_MILLIS = 2000;
+
+    private final MetricsRegistry registry;
+
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService fileExecutor;
+
+    /**
+     * @param registry the registry to export.
+     */
+    public PrometheusExporter(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Writes a snapshot of the registry in the text exposition format.
+     *
+     * @param writer the writer, not closed by this method.
+     */
+    public void write(Writer writer) throws IOException {
+        write(registry.snapshot(), writer);
+    }
+
+    /**
+     * Writes a snapshot in the text exposition format.
+     *
+     * @param snapshot the metrics.
+     * @param writer   the writer, not closed by this method.
+     */
+    public static void write(MetricsSnapshot snapshot, Writer writer) throws IOException {
+        for (Map.Entry<String, Long> entry : snapshot.getCounters().entrySet()) {
+            final String name = PREFIX + sanitize(entry.getKey()) + "_total";
+            writer.write("# TYPE " + name + " counter\n");
+            writer.write(name + " " + entry.getValue() + "\n");
+        }
+        for (Map.Entry<String, Long> entry : snapshot.getGauges().entrySet()) {
+            final String name = PREFIX + sanitize(entry.getKey());
+            writer.write("# TYPE " + name + " gauge\n");
+            writer.write(name + " " + entry.getValue() + "\n");
+        }
+        for (Map.Entry<String, HistogramSnapshot> entry : snapshot.getHistograms().entrySet()) {
+            final String name = PREFIX + sanitize(entry.getKey()) + "_seconds";
+            final HistogramSnapshot histogram = entry.getValue();
+            writer.write("# TYPE " + name + " summary\n");
+            for (double quantile : QUANTILES) {
+                writer.write(name + "{quantile=\"" + quantile + "\"} "
+                        + seconds(histogram.getPercentile(quantile * 100)) + "\n");
+            }
+            writer.write(name + "_sum " + seconds(histogram.getSum()) + "\n");
+            writer.write(name + "_count " + histogram.getCount() + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Starts serving the metrics on {@code http://127.0.0.1:<port>/metrics}. Requests are handled
+     * one at a time on a daemon thread. Opening a socket requires the {@code INTERNET} permission,
+     * even on the loopback interface.
+     *
+     * @param port the port, or {@code 0} to pick a free one.
+     * @return the port the server is listening on.
+     */
+    public synchronized int startServer(int port) throws IOException {
+        if (serverSocket != null) {
+            return serverSocket.getLocalPort();
+        }
+        final ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        serverSocket = socket;
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                serve(socket);
+            }
+        }, "TextureVideoView-Metrics");
+        thread.setDaemon(true);
+        thread.start();
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Stops the server started by {@link #startServer(int)}.
+     */
+    public synchronized void stopServer() {
+        if (serverSocket == null) return;
+
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+            // the accept loop ends either way
+        }
+        serverSocket = null;
+    }
+
+    /**
+     * Starts writing the metrics to the given file periodically. The file is replaced atomically,
+     * so readers never see a partially written file.
+     *
+     * @param file         the file.
+     * @param periodMillis the time between two writes.
+     */
+    public synchronized void startFileExport(final File file, long periodMillis) {
+        stopFileExport();
+        fileExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "TextureVideoView-MetricsFile");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        fileExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeFile(file);
+                } catch (IOException ex) {
+                    Log.w(TAG, "Unable to write metrics to " + file, ex);
+                }
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops writing the metrics file.
+     */
+    public synchronized void stopFileExport() {
+        if (fileExecutor == null) return;
+
+        fileExecutor.shutdown();
+        fileExecutor = null;
+    }
+
+    private void writeFile(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            write(writer);
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+    }
+
+    private void serve(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                try {
+                    client.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+                    handle(client);
+                } finally {
+                    client.close();
+                }
+            } catch (IOException ex) {
+                if (!socket.isClosed()) {
+                    Log.w(TAG, "Unable to serve metrics.", ex);
+                }
+            }
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+        final String requestLine = reader.readLine();
+        if (requestLine == null) return;
+        // skip the headers, the response doesn't depend on them
+        String line;
+        do {
+            line = reader.readLine();
+        } while (line != null && !line.isEmpty());
+
+        final String[] parts = requestLine.split(" ");
+        final OutputStream out = client.getOutputStream();
+        if (parts.length < 2 || !parts[0].equals("GET")
+                || !(parts[1].equals("/metrics") || parts[1].equals("/"))) {
+            out.write("HTTP/1.0 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+            return;
+        }
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        write(new OutputStreamWriter(body, "UTF-8"));
+        out.write(("HTTP/1.0 200 OK\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + body.size() + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        body.writeTo(out);
+        out.flush();
+    }
+
+    private static String sanitize(String name) {
+        final StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            final boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':'
+                    || (c >= '0' && c <= '9');
+            builder.append(valid ? c : '_');
+        }
+        return builder.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / NANOS_PER_SECOND);
+    }
+}
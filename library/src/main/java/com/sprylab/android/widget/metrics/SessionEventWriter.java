@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Writes finished {@link PlaybackSession}s to rotating files in the background.
+ * <p>
+ * {@link #submit(PlaybackSession)} never blocks: sessions are queued in a bounded queue of pending
+ * sessions, and if the writer thread can't keep up
+ * (e.g. because the disk is slow) further sessions are dropped and counted instead of piling up in
+ * memory. The writer thread drains all pending sessions at once, encodes them into one batch,
+ * compresses the batch with a {@link Deflater} and appends it through a {@link FileChannel}.
+ * <p>
+ * A file starts with the magic {@code 'TVSE'} and the format version ({@code 1}) followed by
+ * records:
+ * <pre>
+ * int     length of the compressed batch
+ * int     length of the uncompressed batch
+ * int     number of sessions in the batch
+ * bytes   the batch compressed with DEFLATE (zlib format), see PlaybackSession for the encoding
+ *         of the sessions
+ * </pre>
+ * Once a file exceeds {@link #setMaxFileBytes(long)}, a new file is started; only the newest
+ * {@link #setMaxFiles(int)} files are kept.
+ */
+public final class SessionEventWriter {
+
+    private static final String TAG = SessionEventWriter.class.getSimpleName();
+
+    private static final int MAGIC = 0x54565345; // 'TVSE'
+    private static final int VERSION = 1;
+
+    private static final String FILE_PREFIX = "sessions-";
+    private static final String FILE_SUFFIX = ".tvse";
+
+    private static final int DEFAULT_MAX_PENDING_SESSIONS = 32;
+    private static final long DEFAULT_MAX_FILE_BYTES = 256 * 1024;
+    private static final int DEFAULT_MAX_FILES = 8;
+
+    private final File directory;
+
+    // wakes up the writer thread when closing
+    private static final PlaybackSession CLOSE_MARKER = new PlaybackSession(null);
+
+    private final BlockingQueue<PlaybackSession> queue;
+    private volatile long maxFileBytes = DEFAULT_MAX_FILE_BYTES;
+    private volatile int maxFiles = DEFAULT_MAX_FILES;
+
+    private Thread writerThread;
+    private volatile boolean closed;
+
+    private long writtenSessionCount;
+    private long droppedSessionCount;
+    private long writtenBytes;
+
+    // accessed by the writer thread only
+    private final BatchBuffer batch = new BatchBuffer();
+    private final DataOutputStream batchOut = new DataOutputStream(batch);
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private byte[] compressed = new byte[8192];
+    private final ByteBuffer header = ByteBuffer.allocate(12);
+    private FileChannel channel;
+    private long fileSize;
+
+    /**
+     * Creates a writer keeping at most {@value #DEFAULT_MAX_PENDING_SESSIONS} pending sessions.
+     *
+     * @param directory the directory for the session files; created if necessary.
+     */
+    public SessionEventWriter(File directory) {
+        this(directory, DEFAULT_MAX_PENDING_SESSIONS);
+    }
+
+    /**
+     * @param directory          the directory for the session files; created if necessary.
+     * @param maxPendingSessions the maximum number of sessions waiting to be written.
+     */
+    public SessionEventWriter(File directory, int maxPendingSessions) {
+        if (maxPendingSessions <= 0) {
+            throw new IllegalArgumentException("maxPendingSessions must be positive: " + maxPendingSessions);
+        }
+        this.directory = directory;
+        queue = new ArrayBlockingQueue<>(maxPendingSessions);
+    }
+
+    /**
+     * Sets the size after which a new file is started. Defaults to 256 KB.
+     */
+    public void setMaxFileBytes(long maxFileBytes) {
+        if (maxFileBytes <= 0) {
+            throw new IllegalArgumentException("maxFileBytes must be positive: " + maxFileBytes);
+        }
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * Sets the number of files kept; older files are deleted. Defaults to
+     * {@value #DEFAULT_MAX_FILES}.
+     */
+    public void setMaxFiles(int maxFiles) {
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("maxFiles must be positive: " + maxFiles);
+        }
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Queues a finished session for writing. Never blocks.
+     *
+     * @param session the session; must not be modified afterwards.
+     * @return {@code false} if the session was dropped because too many sessions are pending or
+     * the writer has been closed.
+     */
+    public boolean submit(PlaybackSession session) {
+        session.end();
+        if (closed || !queue.offer(session)) {
+            synchronized (this) {
+                droppedSessionCount++;
+            }
+            return false;
+        }
+        startWriterThread();
+        return true;
+    }
+
+    /**
+     * Writes the pending sessions and stops the writer thread. Sessions submitted afterwards are
+     * dropped.
+     */
+    public void close() {
+        closed = true;
+        // the writer thread is only blocked if the queue is empty, so the marker always fits then;
+        // interrupting it instead could close the file channel in the middle of a write
+        queue.offer(CLOSE_MARKER);
+    }
+
+    public synchronized long getWrittenSessionCount() {
+        return writtenSessionCount;
+    }
+
+    /**
+     * @return the number of sessions dropped because the writer couldn't keep up or failed.
+     */
+    public synchronized long getDroppedSessionCount() {
+        return droppedSessionCount;
+    }
+
+    /**
+     * @return the number of bytes written to the files, after compression.
+     */
+    public synchronized long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    private synchronized void startWriterThread() {
+        if (writerThread != null) return;
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        }, "TextureVideoView-Sessions");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private void writeLoop() {
+        final List<PlaybackSession> sessions = new ArrayList<>();
+        try {
+            while (!closed) {
+                try {
+                    sessions.add(queue.take());
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                queue.drainTo(sessions);
+                write(sessions);
+                sessions.clear();
+            }
+            // closed: write what is left
+            queue.drainTo(sessions);
+            write(sessions);
+        } finally {
+            closeFile();
+            deflater.end();
+        }
+    }
+
+    private void write(List<PlaybackSession> sessions) {
+        int count = 0;
+        batch.reset();
+        try {
+            for (PlaybackSession session : sessions) {
+                if (session == CLOSE_MARKER) continue;
+                session.writeTo(batchOut);
+                count++;
+            }
+            if (count == 0) return;
+
+            final int length = deflate(batch.buffer(), batch.size());
+            append(length, batch.size(), count);
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to write " + count + " sessions.", ex);
+            closeFile();
+            synchronized (this) {
+                droppedSessionCount += count;
+            }
+            return;
+        }
+        synchronized (this) {
+            writtenSessionCount += count;
+        }
+    }
+
+    private int deflate(byte[] input, int inputLength) {
+        deflater.reset();
+        deflater.setInput(input, 0, inputLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+
+    private void append(int compressedLength, int uncompressedLength, int count) throws IOException {
+        if (channel == null || fileSize >= maxFileBytes) {
+            rotate();
+        }
+        header.clear();
+        header.putInt(compressedLength).putInt(uncompressedLength).putInt(count).flip();
+        final ByteBuffer body = ByteBuffer.wrap(compressed, 0, compressedLength);
+        final long written = writeFully(new ByteBuffer[]{header, body});
+        fileSize += written;
+        synchronized (this) {
+            writtenBytes += written;
+        }
+    }
+
+    private long writeFully(ByteBuffer[] buffers) throws IOException {
+        long written = 0;
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            written += channel.write(buffers);
+        }
+        return written;
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        long timestamp = System.currentTimeMillis();
+        File file;
+        while ((file = new File(directory, fileName(timestamp))).exists()) {
+            timestamp++;
+        }
+        channel = new FileOutputStream(file).getChannel();
+        final ByteBuffer fileHeader = ByteBuffer.allocate(8);
+        fileHeader.putInt(MAGIC).putInt(VERSION).flip();
+        fileSize = writeFully(new ByteBuffer[]{fileHeader});
+        deleteOldFiles();
+    }
+
+    private void closeFile() {
+        if (channel == null) return;
+
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to close session file.", ex);
+        }
+        channel = null;
+    }
+
+    private void deleteOldFiles() {
+        final String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }
+        });
+        if (names == null || names.length <= maxFiles) return;
+
+        // the zero-padded timestamps sort chronologically
+        Arrays.sort(names);
+        for (int i = 0; i < names.length - maxFiles; i++) {
+            new File(directory, names[i]).delete();
+        }
+    }
+
+    private static String fileName(long timestamp) {
+        return String.format(Locale.US, "%s%013d%s", FILE_PREFIX, timestamp, FILE_SUFFIX);
+    }
+
+    /**
+     * Exposes its buffer to avoid copying every batch before compressing it.
+     */
+    private static final class BatchBuffer extends ByteArrayOutputStream {
+
+        BatchBuffer() {
+            super(8192);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
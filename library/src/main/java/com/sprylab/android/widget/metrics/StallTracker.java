@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import android.media.MediaPlayer;
+
+/**
+ * Tracks rebuffering of a video from the {@link MediaPlayer.OnInfoListener info} events of its
+ * player.
+ * <p>
+ * Buffering before the first frame has been rendered counts as startup, not as stall. Rendering is
+ * considered started on {@link #MEDIA_INFO_VIDEO_RENDERING_START} or on
+ * {@link #markRenderingStart(long)}, whatever comes first. The rebuffer ratio relates the stall time
+ * to the time spent playing (including stalls).
+ * <p>
+ * This class is not thread-safe; it is meant to be used on the main thread only. All timestamps
+ * are {@link System#nanoTime()} values.
+ */
+public final class StallTracker {
+
+    /**
+     * {@code MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START}, available from API level 17.
+     */
+    public static final int MEDIA_INFO_VIDEO_RENDERING_START = 3;
+
+    private long renderingStartNanos;
+    private long stallStartNanos;
+    private long playStartNanos;
+    private long playNanos;
+
+    private int stallCount;
+    private long totalStallNanos;
+    private long longestStallNanos;
+
+    /**
+     * Clears all statistics, e.g. when a new video is set.
+     */
+    public void reset() {
+        renderingStartNanos = 0;
+        stallStartNanos = 0;
+        playStartNanos = 0;
+        playNanos = 0;
+        stallCount = 0;
+        totalStallNanos = 0;
+        longestStallNanos = 0;
+    }
+
+    /**
+     * Processes an info event of the player.
+     *
+     * @param what  the type of the event.
+     * @param nanos the time of the event.
+     */
+    public void onInfo(int what, long nanos) {
+        switch (what) {
+            case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+                if (renderingStartNanos != 0 && stallStartNanos == 0) {
+                    stallStartNanos = nanos;
+                }
+                break;
+            case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+                endStall(nanos);
+                break;
+            case MEDIA_INFO_VIDEO_RENDERING_START:
+                markRenderingStart(nanos);
+                break;
+        }
+    }
+
+    /**
+     * Marks the first rendered frame. Later calls are ignored.
+     */
+    public void markRenderingStart(long nanos) {
+        if (renderingStartNanos == 0) {
+            renderingStartNanos = nanos;
+        }
+    }
+
+    public boolean isRenderingStarted() {
+        return renderingStartNanos != 0;
+    }
+
+    /**
+     * Tells the tracker whether the video is supposed to be playing. Only time spent playing is
+     * used for the rebuffer ratio.
+     *
+     * @return the duration of the stall ended by pausing or stopping in nanoseconds, or {@code 0}
+     * if there was none.
+     */
+    public long setPlaying(boolean playing, long nanos) {
+        if (playing && playStartNanos == 0) {
+            playStartNanos = nanos;
+        } else if (!playing && playStartNanos != 0) {
+            playNanos += nanos - playStartNanos;
+            playStartNanos = 0;
+            // a paused player doesn't stall
+            return endStall(nanos);
+        }
+        return 0;
+    }
+
+    public boolean isStalled() {
+        return stallStartNanos != 0;
+    }
+
+    /**
+     * @return the number of stalls, including an ongoing one.
+     */
+    public int getStallCount() {
+        return stallCount + (stallStartNanos != 0 ? 1 : 0);
+    }
+
+    /**
+     * @return the total stall time until the given time in nanoseconds, including an ongoing stall.
+     */
+    public long getTotalStallNanos(long nowNanos) {
+        return totalStallNanos + (stallStartNanos != 0 ? nowNanos - stallStartNanos : 0);
+    }
+
+    /**
+     * @return the duration of the ongoing stall in nanoseconds, or {@code 0} if not stalled.
+     */
+    public long getCurrentStallNanos(long nowNanos) {
+        return stallStartNanos != 0 ? nowNanos - stallStartNanos : 0;
+    }
+
+    /**
+     * @return the longest stall in nanoseconds, including an ongoing one.
+     */
+    public long getLongestStallNanos(long nowNanos) {
+        return Math.max(longestStallNanos, stallStartNanos != 0 ? nowNanos - stallStartNanos : 0);
+    }
+
+    /**
+     * @return the time spent playing until the given time in nanoseconds, including stalls.
+     */
+    public long getPlayNanos(long nowNanos) {
+        return playNanos + (playStartNanos != 0 ? nowNanos - playStartNanos : 0);
+    }
+
+    /**
+     * @return the ratio of the stall time to the time spent playing, between {@code 0} and {@code 1}.
+     */
+    public float getRebufferRatio(long nowNanos) {
+        final long play = getPlayNanos(nowNanos);
+        return play <= 0 ? 0 : Math.min(1f, (float) getTotalStallNanos(nowNanos) / play);
+    }
+
+    private long endStall(long nanos) {
+        if (stallStartNanos == 0) return 0;
+
+        final long duration = nanos - stallStartNanos;
+        stallStartNanos = 0;
+        stallCount++;
+        totalStallNanos += duration;
+        if (duration > longestStallNanos) {
+            longestStallNanos = duration;
+        }
+        return duration;
+    }
+}
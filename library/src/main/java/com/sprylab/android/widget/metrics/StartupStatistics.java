@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+/**
+ * Aggregates the {@link StartupTiming}s of all videos shown in the process into histograms, one for
+ * each phase measured from setting the video URI.
+ */
+public final class StartupStatistics {
+
+    private static final StartupStatistics INSTANCE = new StartupStatistics();
+
+    // only recorded from the main thread, so striping wouldn't pay off
+    private final LatencyHistogram timeToSurface = new LatencyHistogram(1);
+    private final LatencyHistogram timeToPrepareIssued = new LatencyHistogram(1);
+    private final LatencyHistogram timeToPrepared = new LatencyHistogram(1);
+    private final LatencyHistogram timeToFirstFrame = new LatencyHistogram(1);
+
+    private StartupStatistics() {
+    }
+
+    /**
+     * @return the process-wide statistics.
+     */
+    public static StartupStatistics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a completed measurement.
+     */
+    public void record(StartupTiming timing) {
+        if (!timing.isComplete()) return;
+
+        timeToSurface.record(timing.getTimeToSurfaceNanos());
+        timeToPrepareIssued.record(timing.getTimeToPrepareIssuedNanos());
+        timeToPrepared.record(timing.getTimeToPreparedNanos());
+        timeToFirstFrame.record(timing.getTimeToFirstFrameNanos());
+    }
+
+    public LatencyHistogram getTimeToSurface() {
+        return timeToSurface;
+    }
+
+    public LatencyHistogram getTimeToPrepareIssued() {
+        return timeToPrepareIssued;
+    }
+
+    public LatencyHistogram getTimeToPrepared() {
+        return timeToPrepared;
+    }
+
+    /**
+     * @return the histogram of the time to first frame in nanoseconds.
+     */
+    public LatencyHistogram getTimeToFirstFrame() {
+        return timeToFirstFrame;
+    }
+
+    public void reset() {
+        timeToSurface.reset();
+        timeToPrepareIssued.reset();
+        timeToPrepared.reset();
+        timeToFirstFrame.reset();
+    }
+}
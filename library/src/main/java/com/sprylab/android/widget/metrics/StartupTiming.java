@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+/**
+ * The timestamps of the startup phases of a video, from setting the video URI to the first frame
+ * rendered into the view. All timestamps are {@link System#nanoTime()} values; a timestamp of
+ * {@code 0} means the phase has not been reached yet.
+ * <p>
+ * Instances are reused by their view for every video, so listeners must copy the values they want
+ * to keep.
+ */
+public final class StartupTiming {
+
+    long uriSetNanos;
+    long surfaceAvailableNanos;
+    long prepareIssuedNanos;
+    long preparedNanos;
+    long firstFrameNanos;
+
+    /**
+     * Starts a new measurement.
+     *
+     * @param nanos the time the video URI was set.
+     */
+    public void begin(long nanos) {
+        uriSetNanos = nanos;
+        surfaceAvailableNanos = 0;
+        prepareIssuedNanos = 0;
+        preparedNanos = 0;
+        firstFrameNanos = 0;
+    }
+
+    /**
+     * Takes over the measurement of another instance, e.g. when the playback moves to another view.
+     */
+    public void copyFrom(StartupTiming other) {
+        uriSetNanos = other.uriSetNanos;
+        surfaceAvailableNanos = other.surfaceAvailableNanos;
+        prepareIssuedNanos = other.prepareIssuedNanos;
+        preparedNanos = other.preparedNanos;
+        firstFrameNanos = other.firstFrameNanos;
+    }
+
+    /**
+     * Discards the measurement.
+     */
+    public void clear() {
+        begin(0);
+    }
+
+    /**
+     * @return {@code true} if a measurement was started and the first frame has not been rendered yet.
+     */
+    public boolean isRunning() {
+        return uriSetNanos != 0 && firstFrameNanos == 0;
+    }
+
+    public boolean isComplete() {
+        return firstFrameNanos != 0;
+    }
+
+    public void markSurfaceAvailable(long nanos) {
+        if (isRunning() && surfaceAvailableNanos == 0) surfaceAvailableNanos = nanos;
+    }
+
+    public void markPrepareIssued(long nanos) {
+        if (isRunning() && prepareIssuedNanos == 0) prepareIssuedNanos = nanos;
+    }
+
+    public void markPrepared(long nanos) {
+        if (isRunning() && preparedNanos == 0) preparedNanos = nanos;
+    }
+
+    /**
+     * Marks the first frame, which completes the measurement. Frames before the video has been
+     * prepared are ignored.
+     *
+     * @return {@code true} if this frame completed the measurement.
+     */
+    public boolean markFirstFrame(long nanos) {
+        if (!isRunning() || preparedNanos == 0) return false;
+        firstFrameNanos = nanos;
+        return true;
+    }
+
+    public long getUriSetNanos() {
+        return uriSetNanos;
+    }
+
+    public long getSurfaceAvailableNanos() {
+        return surfaceAvailableNanos;
+    }
+
+    public long getPrepareIssuedNanos() {
+        return prepareIssuedNanos;
+    }
+
+    public long getPreparedNanos() {
+        return preparedNanos;
+    }
+
+    public long getFirstFrameNanos() {
+        return firstFrameNanos;
+    }
+
+    /**
+     * @return the time from setting the video URI until the surface was available, in nanoseconds.
+     */
+    public long getTimeToSurfaceNanos() {
+        return since(surfaceAvailableNanos);
+    }
+
+    /**
+     * @return the time from setting the video URI until {@code prepareAsync()} was issued, in
+     * nanoseconds.
+     */
+    public long getTimeToPrepareIssuedNanos() {
+        return since(prepareIssuedNanos);
+    }
+
+    /**
+     * @return the time from setting the video URI until the video was prepared, in nanoseconds.
+     */
+    public long getTimeToPreparedNanos() {
+        return since(preparedNanos);
+    }
+
+    /**
+     * @return the time from setting the video URI until the first frame was rendered, in
+     * nanoseconds.
+     */
+    public long getTimeToFirstFrameNanos() {
+        return since(firstFrameNanos);
+    }
+
+    private long since(long nanos) {
+        return nanos == 0 || uriSetNanos == 0 ? 0 : nanos - uriSetNanos;
+    }
+}
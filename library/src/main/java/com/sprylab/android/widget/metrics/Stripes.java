@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+/**
+ * Maps threads to stripes of the striped metrics.
+ */
+final class Stripes {
+
+    static final int MAX_STRIPES = 4;
+
+    // longs per counter stripe, so that neighbouring stripes don't share a cache line
+    static final int PADDING = 8;
+
+    private Stripes() {
+    }
+
+    static int defaultStripeCount() {
+        return Math.min(MAX_STRIPES, roundUp(Runtime.getRuntime().availableProcessors()));
+    }
+
+    static int roundUp(int count) {
+        if (count <= 1) return 1;
+        return Integer.highestOneBit(count - 1) << 1;
+    }
+
+    /**
+     * @param mask the number of stripes minus one.
+     * @return the stripe of the calling thread.
+     */
+    static int index(int mask) {
+        if (mask == 0) return 0;
+        final long id = Thread.currentThread().getId();
+        // thread ids are sequential, mix them a bit so that threads created together spread out
+        return (int) (id ^ (id >>> 3)) & mask;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.metrics;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Collects playback trace spans in memory and exports them in the Chrome trace event JSON format,
+ * which can be opened in Perfetto or {@code chrome://tracing}.
+ * <p>
+ * The collector keeps the most recent {@link #DEFAULT_CAPACITY} events. It is disabled by default.
+ *
+ * @see PlaybackTrace
+ */
+public final class TraceCollector {
+
+    static final int DEFAULT_CAPACITY = 8192;
+
+    private static final char PHASE_COMPLETE = 'X';
+    private static final char PHASE_ASYNC_BEGIN = 'b';
+    private static final char PHASE_ASYNC_END = 'e';
+
+    private final String[] names;
+    private final char[] phases;
+    private final long[] timestamps;
+    private final long[] durations;   // or the id of async events
+    private final int[] threadIds;
+    private int next;
+    private int size;
+
+    private volatile boolean enabled;
+
+    public TraceCollector() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of events kept.
+     */
+    public TraceCollector(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        names = new String[capacity];
+        phases = new char[capacity];
+        timestamps = new long[capacity];
+        durations = new long[capacity];
+        threadIds = new int[capacity];
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds a span that started and ended on the calling thread.
+     *
+     * @param name       the name of the span.
+     * @param startNanos the {@link System#nanoTime()} the span started.
+     * @param endNanos   the {@link System#nanoTime()} the span ended.
+     */
+    public void addSpan(String name, long startNanos, long endNanos) {
+        add(name, PHASE_COMPLETE, startNanos, endNanos - startNanos);
+    }
+
+    /**
+     * Marks the begin of an asynchronous span, which may end on another thread.
+     *
+     * @param name the name of the span.
+     * @param id   the id identifying the span between begin and end.
+     */
+    public void beginAsync(String name, long id) {
+        add(name, PHASE_ASYNC_BEGIN, System.nanoTime(), id);
+    }
+
+    /**
+     * Marks the end of an asynchronous span.
+     *
+     * @param name the name of the span.
+     * @param id   the id passed to {@link #beginAsync(String, long)}.
+     */
+    public void endAsync(String name, long id) {
+        add(name, PHASE_ASYNC_END, System.nanoTime(), id);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        next = 0;
+        size = 0;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = null;
+        }
+    }
+
+    /**
+     * Writes the collected events as Chrome trace event JSON. The writer is not closed.
+     */
+    public synchronized void writeChromeTrace(Writer writer) throws IOException {
+        final int pid = Process.myPid();
+        final int first = (next - size + names.length) % names.length;
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        for (int i = 0; i < size; i++) {
+            final int index = (first + i) % names.length;
+            if (i > 0) writer.write(',');
+            writer.write("\n{\"name\":");
+            writeString(writer, names[index]);
+            writer.write(",\"cat\":\"TextureVideoView\",\"ph\":\"");
+            writer.write(phases[index]);
+            writer.write("\",\"ts\":");
+            writeMicros(writer, timestamps[index]);
+            if (phases[index] == PHASE_COMPLETE) {
+                writer.write(",\"dur\":");
+                writeMicros(writer, durations[index]);
+            } else {
+                writer.write(",\"id\":\"0x");
+                writer.write(Long.toHexString(durations[index]));
+                writer.write('"');
+            }
+            writer.write(",\"pid\":");
+            writer.write(Integer.toString(pid));
+            writer.write(",\"tid\":");
+            writer.write(Integer.toString(threadIds[index]));
+            writer.write('}');
+        }
+        writer.write("\n]}\n");
+        writer.flush();
+    }
+
+    private void add(String name, char phase, long timestamp, long durationOrId) {
+        if (!enabled) return;
+
+        final int tid = Process.myTid();
+        synchronized (this) {
+            names[next] = name;
+            phases[next] = phase;
+            timestamps[next] = timestamp;
+            durations[next] = durationOrId;
+            threadIds[next] = tid;
+            next = (next + 1) % names.length;
+            if (size < names.length) size++;
+        }
+    }
+
+    private static void writeMicros(Writer writer, long nanos) throws IOException {
+        writer.write(Long.toString(nanos / 1000));
+        writer.write('.');
+        final long fraction = nanos % 1000;
+        if (fraction < 100) writer.write('0');
+        if (fraction < 10) writer.write('0');
+        writer.write(Long.toString(fraction));
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of {@link CacheProxy} with concurrent clients, and the heap allocations of
+ * its event loop per served megabyte: first streaming videos that aren't cached yet from a local
+ * origin, then reading ranges of them from the cache. Allocations are counted on VMs that support
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+ * <p>
+ * Usage: {@code CacheProxyBenchmark [clients] [cache directory]}, run with the test classpath of the
+ * library, whose stand-ins replace the framework classes used by the proxy.
+ */
+public final class CacheProxyBenchmark {
+
+    private static final int VIDEO_SIZE = 4 * 1024 * 1024;
+    private static final int VIDEOS = 32;
+    private static final int RANGES_PER_CLIENT = 8;
+    private static final int RUNS = 5;
+
+    private static final byte[] VIDEO = new byte[VIDEO_SIZE];
+
+    private CacheProxyBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final File directory = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"),
+                "CacheProxyBenchmark");
+        new Random(1).nextBytes(VIDEO);
+
+        final OriginServer origin = new OriginServer(VIDEO);
+        final VideoCache cache = new VideoCache(directory, 2L * VIDEOS * VIDEO_SIZE);
+        cache.clear();
+        final CacheProxy proxy = new CacheProxy(cache);
+        proxy.start();
+        final String baseUrl = origin.getUrl("/video");
+
+        try {
+            final long loopThreadId = getLoopThreadId();
+            long allocated = getAllocatedBytes(loopThreadId);
+            long start = System.nanoTime();
+            long bytes = run(proxy, baseUrl, clients, false);
+            report("miss", clients, bytes, System.nanoTime() - start,
+                    getAllocatedBytes(loopThreadId) - allocated, proxy.getBytesServedFromNetwork());
+
+            final long served = proxy.getBytesServedFromCache();
+            allocated = getAllocatedBytes(loopThreadId);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                start = System.nanoTime();
+                bytes = run(proxy, baseUrl, clients, true);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            report("hit", clients, bytes, best,
+                    getAllocatedBytes(loopThreadId) - allocated, proxy.getBytesServedFromCache() - served);
+            System.out.println(String.format(Locale.US, "transferred %d, mapped %d bytes",
+                    proxy.getBytesTransferred(), proxy.getBytesMapped()));
+        } finally {
+            proxy.stop();
+            origin.close();
+            cache.clear();
+        }
+    }
+
+    /**
+     * @param allocated the bytes allocated by the event loop thread, negative if unknown.
+     * @param served    the bytes served by the proxy meanwhile.
+     */
+    private static void report(String name, int clients, long bytes, long nanos, long allocated, long served) {
+        System.out.println(String.format(Locale.US, "%s: %d clients, %.0f MB/s, %s bytes allocated per served MB",
+                name, clients, bytes / 1e6 / (nanos / 1e9),
+                allocated >= 0 && served > 0 ? String.format(Locale.US, "%.0f", allocated / (served / 1e6)) : "?"));
+    }
+
+    private static long getLoopThreadId() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("TextureVideoView-CacheProxy")) {
+                return thread.getId();
+            }
+        }
+        throw new IllegalStateException("The event loop is not running.");
+    }
+
+    /**
+     * @return the bytes allocated on the heap by the thread so far, or {@code -1} if the VM
+     * doesn't count them.
+     */
+    private static long getAllocatedBytes(long threadId) {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+    }
+
+    /**
+     * Streams one whole video per client, or {@value #RANGES_PER_CLIENT} open ranges of different
+     * videos per client.
+     *
+     * @return the number of bytes read by all clients.
+     */
+    private static long run(final CacheProxy proxy, final String baseUrl, int clients, final boolean ranges)
+            throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            final List<Future<Long>> results = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                final int client = i;
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        long count = 0;
+                        for (int j = 0; j < (ranges ? RANGES_PER_CLIENT : 1); j++) {
+                            final int video = (client * RANGES_PER_CLIENT + j) % VIDEOS;
+                            count += read(proxy.getProxyUrl(baseUrl + video + ".mp4"), ranges ? j * 100000 : -1);
+                        }
+                        return count;
+                    }
+                }));
+            }
+            long total = 0;
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+            return total;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long read(String url, int rangeStart) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (rangeStart >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + rangeStart + "-");
+        }
+        final InputStream input = connection.getInputStream();
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            long count = 0;
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                count += read;
+            }
+            return count;
+        } finally {
+            input.close();
+            connection.disconnect();
+        }
+    }
+}
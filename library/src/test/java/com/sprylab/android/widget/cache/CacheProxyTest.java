@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs {@link CacheProxy} against an in-process {@link OriginServer}.
+ */
+public class CacheProxyTest {
+
+    private static final int VIDEO_SIZE = 1024 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] video = new byte[VIDEO_SIZE];
+
+    private OriginServer origin;
+    private VideoCache cache;
+    private CacheProxy proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(video);
+        origin = new OriginServer(video);
+        cache = new VideoCache(folder.getRoot(), 16 * VIDEO_SIZE);
+        proxy = new CacheProxy(cache);
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        proxy.stop();
+        origin.close();
+    }
+
+    @Test(timeout = 10000)
+    public void firstFetchIsMissAndReplayIsHit() throws IOException {
+        final String url = origin.getUrl("/video.mp4");
+
+        final Response first = get(url, null);
+        assertEquals(200, first.code);
+        assertArrayEquals(video, first.body);
+        assertEquals(1, origin.getRequestCount());
+        assertEquals(1, proxy.getCacheMissCount());
+        assertEquals(0, proxy.getCacheHitCount());
+
+        origin.resetCounters();
+        final Response replay = get(url, null);
+        assertEquals(200, replay.code);
+        assertArrayEquals(video, replay.body);
+        assertEquals(0, origin.getRequestCount());
+        assertEquals(0, origin.getBytesSent());
+        assertEquals(1, proxy.getCacheHitCount());
+        assertEquals(VIDEO_SIZE, proxy.getBytesServedFromCache());
+    }
+
+    @Test(timeout = 10000)
+    public void rangeRequestIsServedFromDisk() throws IOException {
+        final String url = origin.getUrl("/video.mp4");
+        get(url, null);
+        origin.resetCounters();
+        proxy.resetStatistics();
+
+        final Response range = get(url, "bytes=1000-1999");
+        assertEquals(206, range.code);
+        assertEquals("bytes 1000-1999/" + VIDEO_SIZE, range.contentRange);
+        assertArrayEquals(Arrays.copyOfRange(video, 1000, 2000), range.body);
+        assertEquals(0, origin.getRequestCount());
+        assertEquals(1000, proxy.getBytesServedFromCache());
+        assertEquals(1000, proxy.getBytesTransferred() + proxy.getBytesMapped());
+    }
+
+    @Test(timeout = 10000)
+    public void missedRangeIsWrittenToDisk() throws IOException {
+        final String url = origin.getUrl("/video.mp4");
+
+        final Response miss = get(url, "bytes=500000-");
+        assertEquals(206, miss.code);
+        assertArrayEquals(Arrays.copyOfRange(video, 500000, VIDEO_SIZE), miss.body);
+        assertEquals(VIDEO_SIZE - 500000, origin.getBytesSent());
+
+        origin.resetCounters();
+        final Response hit = get(url, "bytes=600000-699999");
+        assertEquals(206, hit.code);
+        assertArrayEquals(Arrays.copyOfRange(video, 600000, 700000), hit.body);
+        assertEquals(0, origin.getRequestCount());
+
+        // only the missing head of the video is fetched
+        final Response full = get(url, null);
+        assertArrayEquals(video, full.body);
+        assertEquals(500000, origin.getBytesSent());
+    }
+
+    @Test(timeout = 10000)
+    public void stopReleasesEntriesOfOpenStreams() throws Exception {
+        final String url = origin.getUrl("/video.mp4");
+        origin.setStallAfter(VIDEO_SIZE / 4);
+        final HttpURLConnection connection = (HttpURLConnection) new URL(proxy.getProxyUrl(url)).openConnection();
+        final InputStream input = connection.getInputStream();
+        final byte[] buffer = new byte[64 * 1024];
+        int received = 0;
+        while (received < VIDEO_SIZE / 4) {
+            received += input.read(buffer);
+        }
+
+        proxy.stop();
+        try {
+            while (input.read(buffer) >= 0) {
+                // the stream ends as the event loop closes the connection
+            }
+        } catch (IOException expected) {
+            // or it is cut off
+        } finally {
+            connection.disconnect();
+        }
+        while (getUseCount(url) > 0) {
+            Thread.sleep(10);
+        }
+        // the ranges relayed so far have been journaled
+        assertEquals(VIDEO_SIZE / 4, new VideoCache(folder.getRoot(), 16 * VIDEO_SIZE).getSize());
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test(timeout = 10000)
+    public void refusedConnectionIsBadGateway() throws IOException {
+        final ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final int port = closed.getLocalPort();
+        closed.close();
+
+        assertEquals(502, get("http://127.0.0.1:" + port + "/video.mp4", null).code);
+    }
+
+    private int getUseCount(String url) {
+        final CacheEntry entry = cache.acquire(url);
+        synchronized (cache) {
+            cache.release(entry);
+            return entry.useCount;
+        }
+    }
+
+    /**
+     * Reads the response until the proxy closes the connection, which happens after it has
+     * updated its statistics.
+     */
+    private Response get(String url, String range) throws IOException {
+        final URL proxyUrl = new URL(proxy.getProxyUrl(url));
+        final Socket socket = new Socket(proxyUrl.getHost(), proxyUrl.getPort());
+        try {
+            socket.getOutputStream().write(("GET " + proxyUrl.getFile() + " HTTP/1.1\r\nHost: 127.0.0.1\r\n"
+                    + (range != null ? "Range: " + range + "\r\n" : "") + "\r\n").getBytes("US-ASCII"));
+            final byte[] bytes = readFully(socket.getInputStream());
+            int headEnd = 0;
+            while (!(bytes[headEnd] == '\r' && bytes[headEnd + 1] == '\n'
+                    && bytes[headEnd + 2] == '\r' && bytes[headEnd + 3] == '\n')) {
+                headEnd++;
+            }
+            final String[] head = new String(bytes, 0, headEnd, "US-ASCII").split("\r\n");
+
+            final Response response = new Response();
+            response.code = Integer.parseInt(head[0].split(" ")[1]);
+            for (String line : head) {
+                if (line.toLowerCase(Locale.US).startsWith("content-range:")) {
+                    response.contentRange = line.substring("content-range:".length()).trim();
+                }
+            }
+            response.body = Arrays.copyOfRange(bytes, headEnd + 4, bytes.length);
+            return response;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static final class Response {
+        int code;
+        String contentRange;
+        byte[] body;
+    }
+}
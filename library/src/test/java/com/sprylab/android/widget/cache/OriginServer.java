@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in origin on the loopback interface that serves the same video for every path, honoring
+ * open and closed byte ranges, and counts what it sends.
+ */
+final class OriginServer implements Closeable {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final byte[] content;
+    private final ServerSocket server;
+    private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<Socket>());
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private volatile long stallAfter = -1;
+
+    OriginServer(byte[] content) throws IOException {
+        this.content = content;
+        server = new ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"));
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "OriginServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the URL of a video on this origin.
+     */
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getLocalPort() + path;
+    }
+
+    /**
+     * @return the number of requests received.
+     */
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of body bytes sent.
+     */
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    void resetCounters() {
+        requestCount.set(0);
+        bytesSent.set(0);
+    }
+
+    /**
+     * Makes responses stop after the given number of body bytes until the origin is closed, or
+     * {@code -1} to send them completely.
+     */
+    void setStallAfter(long bytes) {
+        stallAfter = bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        closed.countDown();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException ex) {
+                // closed
+                return;
+            }
+            sockets.add(socket);
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException ex) {
+                        // the proxy hung up
+                    } finally {
+                        sockets.remove(socket);
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                            // nothing we can do about it
+                        }
+                    }
+                }
+            }, "OriginServer-Connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        final InputStream input = socket.getInputStream();
+        final StringBuilder head = new StringBuilder();
+        int c;
+        while (head.indexOf("\r\n\r\n") < 0 && (c = input.read()) >= 0) {
+            head.append((char) c);
+        }
+        requestCount.incrementAndGet();
+
+        int start = 0;
+        int end = content.length - 1;
+        String status = "200 OK";
+        String contentRange = "";
+        for (String line : head.toString().split("\r\n")) {
+            if (line.toLowerCase(Locale.US).startsWith("range: bytes=")) {
+                final String[] range = line.substring("range: bytes=".length()).trim().split("-", -1);
+                start = Integer.parseInt(range[0]);
+                if (!range[1].isEmpty()) {
+                    end = Math.min(Integer.parseInt(range[1]), end);
+                }
+                status = "206 Partial Content";
+                contentRange = "Content-Range: bytes " + start + "-" + end + "/" + content.length + "\r\n";
+            }
+        }
+
+        final OutputStream output = socket.getOutputStream();
+        output.write(("HTTP/1.1 " + status + "\r\nContent-Type: video/mp4\r\nContent-Length: " + (end - start + 1)
+                + "\r\n" + contentRange + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        for (int position = start; position <= end; ) {
+            final long stall = stallAfter;
+            if (stall >= 0 && position - start >= stall) {
+                output.flush();
+                try {
+                    closed.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            int count = Math.min(CHUNK_SIZE, end + 1 - position);
+            if (stall >= 0) {
+                count = (int) Math.min(count, start + stall - position);
+            }
+            output.write(content, position, count);
+            bytesSent.addAndGet(count);
+            position += count;
+        }
+        output.flush();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 sprylab technologies GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sprylab.android.widget.cache;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Measures how long a {@link VideoCache} takes to load its index of {@value #ENTRIES} partially
+ * cached videos on first use, i.e. the cold start cost of replaying the journal.
+ * <p>
+ * Usage: {@code VideoCacheBenchmark [cache directory]}, run with the test classpath of the library,
+ * whose stand-ins replace the framework classes used by the cache.
+ */
+public final class VideoCacheBenchmark {
+
+    private static final int ENTRIES = 10000;
+    private static final int RANGES_PER_ENTRY = 4;
+    private static final int RANGE_SIZE = 64;
+    private static final long VIDEO_SIZE = 10000000;
+    private static final int RUNS = 10;
+
+    private VideoCacheBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"),
+                "VideoCacheBenchmark");
+        final long maxBytes = Long.MAX_VALUE / 2;
+        final VideoCache cache = new VideoCache(directory, maxBytes);
+        cache.clear();
+        populate(cache);
+
+        final long expectedSize = (long) ENTRIES * RANGES_PER_ENTRY * RANGE_SIZE;
+        long first = 0;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            final long start = System.nanoTime();
+            final long size = new VideoCache(directory, maxBytes).getSize();
+            final long nanos = System.nanoTime() - start;
+            if (size != expectedSize) {
+                throw new AssertionError("Loaded " + size + " bytes, expected " + expectedSize);
+            }
+            if (i == 0) {
+                first = nanos;
+            }
+            best = Math.min(best, nanos);
+        }
+        System.out.println(String.format(Locale.US, "%d entries: first load %.1f ms, best of %d %.1f ms",
+                ENTRIES, first / 1e6, RUNS, best / 1e6));
+
+        cache.clear();
+    }
+
+    /**
+     * Caches a few sparse ranges of every video, as the proxy does while videos are seeked.
+     */
+    private static void populate(VideoCache cache) throws Exception {
+        final ByteBuffer data = ByteBuffer.allocate(RANGE_SIZE);
+        for (int i = 0; i < ENTRIES; i++) {
+            final CacheEntry entry = cache.acquire("http://example.com/videos/" + i + ".mp4");
+            try {
+                final int generation = cache.validate(entry, VIDEO_SIZE, "\"" + i + "\"");
+                for (int j = 0; j < RANGES_PER_ENTRY; j++) {
+                    data.clear();
+                    cache.onWritten(entry, entry.write(generation, data, j * (VIDEO_SIZE / RANGES_PER_ENTRY)));
+                }
+            } finally {
+                cache.release(entry);
+            }
+        }
+    }
+}